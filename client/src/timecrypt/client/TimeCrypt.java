@@ -4,11 +4,16 @@ import com.google.gson.Gson;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParseException;
 import com.google.gson.JsonParser;
+import com.google.gson.reflect.TypeToken;
 import com.n1analytics.paillier.PaillierPublicKey;
+import timecrypt.client.binary.BinaryProtocol;
+import timecrypt.client.binary.ChunkMetadata;
 import timecrypt.client.json.CreateStreamRequest;
 import timecrypt.client.json.DeleteStreamRequest;
 import timecrypt.client.json.GetRangeRequest;
 import timecrypt.client.json.GetStatisticsRequest;
+import timecrypt.client.json.GetStatisticsSeriesRequest;
+import timecrypt.client.json.InsertBatchRequest;
 import timecrypt.client.json.InsertRequest;
 import timecrypt.client.utils.Utility;
 
@@ -16,14 +21,28 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Base64;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+/**
+ * Client of the TimeCrypt server. Requests can be pipelined on the connection with the asynchronous methods,
+ * responses are matched to their requests by identifier and may arrive in any order.
+ * Requests sent from one connection take effect in the order they were sent.
+ */
 public class TimeCrypt {
 
     private static Logger LOGGER = Logger.getLogger("TimeCrypt Client");
+    private static final int FRAME_HEADER_SIZE = 8; // payload length and request identifier
 
     private String ip;
     private int port;
@@ -31,10 +50,24 @@ public class TimeCrypt {
 
     private JsonParser jsonParser;
     private Gson gson;
-    
+    private boolean binaryProtocol;
+
+    private final Object writeLock = new Object();
+    private final AtomicInteger nextRequestID = new AtomicInteger();
+    private final Map<Integer, CompletableFuture<byte[]>> pendingRequests = new ConcurrentHashMap<Integer, CompletableFuture<byte[]>>();
+    private volatile IOException connectionFailure;
+
     public TimeCrypt(String ip, int port) {
+        this(ip, port, false);
+    }
+
+    /**
+     * The binary protocol sends raw ciphertext bytes instead of JSON with decimal and base64 encoded ciphertexts
+     */
+    public TimeCrypt(String ip, int port, boolean binaryProtocol) {
         this.ip = ip;
         this.port = port;
+        this.binaryProtocol = binaryProtocol;
 
         gson = new Gson();
         jsonParser = new JsonParser();
@@ -49,6 +82,11 @@ public class TimeCrypt {
             LOGGER.severe("Failed to open a socket to the server");
 			throw e;
 		}
+        this.connectionFailure = null;
+
+        Thread reader = new Thread(this::readResponses, "TimeCrypt Client Reader");
+        reader.setDaemon(true);
+        reader.start();
     }
 
     public void closeConnection() throws IOException {
@@ -61,84 +99,281 @@ public class TimeCrypt {
     }
 
     public String createStream(int k, String contract, PaillierPublicKey pubKey, String storage) throws IOException {
+        return await(createStreamAsync(k, contract, pubKey, storage));
+    }
+
+    public CompletableFuture<String> createStreamAsync(int k, String contract, PaillierPublicKey pubKey, String storage) throws IOException {
+        if (binaryProtocol) {
+            byte[] modulus = pubKey == null ? null : pubKey.getModulus().toByteArray();
+            return request(BinaryProtocol.createStream(k, contract, modulus, storage), response -> BinaryProtocol.readStreamID(BinaryProtocol.result(response)));
+        }
+
         String publicKey = null;
         if (pubKey != null) publicKey = Utility.marshalPaillierPublicKey(pubKey);
         String json = gson.toJson(new CreateStreamRequest(k, contract, publicKey, storage));
         LOGGER.info(json);
-        String result = getResult(json);
-        return gson.fromJson(result, String.class);
+
+        return request(json, result -> gson.fromJson(result, String.class));
     }
-    
+
     public boolean insert(String streamID, String key, byte[] data, String metadata) throws IOException {
+        return await(insertAsync(streamID, key, data, metadata));
+    }
+
+    public boolean insert(String streamID, String key, byte[] data, ChunkMetadata metadata) throws IOException {
+        return await(insertAsync(streamID, key, data, metadata));
+    }
+
+    public CompletableFuture<Boolean> insertAsync(String streamID, String key, byte[] data, String metadata) throws IOException {
+        if (binaryProtocol) {
+            return insertAsync(streamID, key, data, ChunkMetadata.fromJson(metadata));
+        }
+
         String json = gson.toJson(new InsertRequest(streamID, key, Base64.getEncoder().encodeToString(data), metadata));
         LOGGER.info(json);
 
-        return Boolean.valueOf(getResult(json));
+        return request(json, Boolean::valueOf);
+    }
+
+    public CompletableFuture<Boolean> insertAsync(String streamID, String key, byte[] data, ChunkMetadata metadata) throws IOException {
+        if (!binaryProtocol) {
+            return insertAsync(streamID, key, data, metadata.toJson());
+        }
+
+        return request(BinaryProtocol.insert(streamID, key, data, metadata), response -> BinaryProtocol.result(response).readBoolean());
+    }
+
+    /**
+     * Inserts an ordered batch of chunks with a single request, keys, data and metadata are matched by position
+     */
+    public boolean insertBatch(String streamID, List<String> keys, List<byte[]> data, List<String> metadata) throws IOException {
+        return await(insertBatchAsync(streamID, keys, data, metadata));
+    }
+
+    public CompletableFuture<Boolean> insertBatchAsync(String streamID, List<String> keys, List<byte[]> data, List<String> metadata) throws IOException {
+        if (binaryProtocol) {
+            List<ChunkMetadata> chunkMetadata = new ArrayList<ChunkMetadata>(metadata.size());
+            for (String md : metadata) {
+                chunkMetadata.add(ChunkMetadata.fromJson(md));
+            }
+            return request(BinaryProtocol.insertBatch(streamID, keys, data, chunkMetadata), response -> BinaryProtocol.result(response).readBoolean());
+        }
+
+        InsertBatchRequest batch = new InsertBatchRequest(streamID);
+        for (int i = 0; i < keys.size(); i++) {
+            batch.add(keys.get(i), Base64.getEncoder().encodeToString(data.get(i)), metadata.get(i));
+        }
+        String json = gson.toJson(batch);
+        LOGGER.info(json);
+
+        return request(json, Boolean::valueOf);
     }
 
     public boolean delete(String streamID) throws IOException {
+        return await(deleteAsync(streamID));
+    }
+
+    public CompletableFuture<Boolean> deleteAsync(String streamID) throws IOException {
+        if (binaryProtocol) {
+            return request(BinaryProtocol.delete(streamID), response -> BinaryProtocol.result(response).readBoolean());
+        }
+
         String json = gson.toJson(new DeleteStreamRequest(streamID));
         LOGGER.info(json);
 
-        return Boolean.valueOf(getResult(json));
+        return request(json, Boolean::valueOf);
     }
 
     public List<byte[]> getRange(String streamID, long fromTime, long toTime) throws IOException {
+        return await(getRangeAsync(streamID, fromTime, toTime));
+    }
+
+    public CompletableFuture<List<byte[]>> getRangeAsync(String streamID, long fromTime, long toTime) throws IOException {
+        if (binaryProtocol) {
+            return request(BinaryProtocol.range(BinaryProtocol.GET_RANGE, streamID, fromTime, toTime), response -> BinaryProtocol.readChunks(BinaryProtocol.result(response)));
+        }
+
         String json = gson.toJson(new GetRangeRequest(streamID, fromTime, toTime));
         LOGGER.info(json);
-        String result = getResult(json);
-        
-        return Utility.base64EncodedStringsToByteArrays(result);
+
+        return request(json, Utility::base64EncodedStringsToByteArrays);
     }
 
     public String getStatistics(String streamID, long fromTime, long toTime) throws IOException {
+        return await(getStatisticsAsync(streamID, fromTime, toTime));
+    }
+
+    public CompletableFuture<String> getStatisticsAsync(String streamID, long fromTime, long toTime) throws IOException {
+        if (binaryProtocol) {
+            return getStatisticsMetadataAsync(streamID, fromTime, toTime).thenApply(ChunkMetadata::toJson);
+        }
+
         String json = gson.toJson(new GetStatisticsRequest(streamID, fromTime, toTime));
         LOGGER.info(json);
 
-        return gson.fromJson(getResult(json), String.class);
+        return request(json, result -> gson.fromJson(result, String.class));
+    }
+
+    /**
+     * Retrieves the statistics of the range with raw ciphertext bytes
+     */
+    public ChunkMetadata getStatisticsMetadata(String streamID, long fromTime, long toTime) throws IOException {
+        return await(getStatisticsMetadataAsync(streamID, fromTime, toTime));
+    }
+
+    public CompletableFuture<ChunkMetadata> getStatisticsMetadataAsync(String streamID, long fromTime, long toTime) throws IOException {
+        if (!binaryProtocol) {
+            return getStatisticsAsync(streamID, fromTime, toTime).thenApply(ChunkMetadata::fromJson);
+        }
+
+        return request(BinaryProtocol.range(BinaryProtocol.GET_STATISTICS, streamID, fromTime, toTime), response -> ChunkMetadata.decode(BinaryProtocol.result(response)));
+    }
+
+    /**
+     * Retrieves the statistics of consecutive windows of the given step within the range with a single request.
+     * Every window is returned in the format of {@link #getStatistics}, empty windows are null.
+     */
+    public List<String> getStatisticsSeries(String streamID, long fromTime, long toTime, long step) throws IOException {
+        return await(getStatisticsSeriesAsync(streamID, fromTime, toTime, step));
+    }
+
+    public CompletableFuture<List<String>> getStatisticsSeriesAsync(String streamID, long fromTime, long toTime, long step) throws IOException {
+        if (binaryProtocol) {
+            return request(BinaryProtocol.series(streamID, fromTime, toTime, step), response -> {
+                List<String> series = new ArrayList<String>();
+                for (ChunkMetadata window : BinaryProtocol.readSeries(BinaryProtocol.result(response))) {
+                    series.add(window == null ? null : window.toJson());
+                }
+                return series;
+            });
+        }
+
+        String json = gson.toJson(new GetStatisticsSeriesRequest(streamID, fromTime, toTime, step));
+        LOGGER.info(json);
+
+        return request(json, result -> gson.fromJson(result, new TypeToken<List<String>>() {}.getType()));
+    }
+
+    private interface ResponseDecoder<T> {
+        T decode(byte[] response) throws IOException;
+    }
+
+    private interface ResultDecoder<T> {
+        T decode(String result) throws IOException;
+    }
+
+    private <T> CompletableFuture<T> request(String requestJson, ResultDecoder<T> decoder) throws IOException {
+        return request(requestJson.getBytes(Charset.forName("UTF-8")), response -> decoder.decode(getResult(response)));
     }
 
-    private String getResult(String requestJson) throws IOException {
-        String apiResult = new String(writeAndRead(requestJson));
+    private <T> CompletableFuture<T> request(byte[] payload, ResponseDecoder<T> decoder) throws IOException {
+        return send(payload).thenApply(response -> {
+            try {
+                return decoder.decode(response);
+            } catch (IOException e) {
+                LOGGER.info("Failed to perform operation: " + e.getMessage());
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+    private String getResult(byte[] response) throws IOException {
+        String apiResult = new String(response, Charset.forName("UTF-8"));
 
         try {
             JsonObject jobject = jsonParser.parse(apiResult).getAsJsonObject();
             String exception = jobject.get("msg").getAsString();
-            LOGGER.info("Failed to perform operation: " + exception);
             throw new IOException(exception);
         } catch (NullPointerException | JsonParseException | IllegalStateException e) {
             return apiResult;
         }
     }
 
-	private byte[] writeAndRead(String json) throws IOException {
-		ByteBuffer buffer = ByteBuffer.wrap(json.getBytes());
-        int bytesWritten = 0;
+    /**
+     * Waits for the result of a request, failures of the request are rethrown as they are
+     */
+    private static <T> T await(CompletableFuture<T> future) throws IOException {
         try {
-            while (bytesWritten != buffer.capacity()) {
-                bytesWritten += this.channel.write(buffer);
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the result of the command.", e);
+        }
+    }
+
+	/**
+	 * Sends a framed request, the future completes when the reader receives the response with the same identifier
+	 */
+	private CompletableFuture<byte[]> send(byte[] payload) throws IOException {
+        int id = nextRequestID.incrementAndGet();
+        CompletableFuture<byte[]> future = new CompletableFuture<byte[]>();
+        pendingRequests.put(id, future);
+        if (connectionFailure != null) { // the reader may have failed the pending requests already
+            pendingRequests.remove(id);
+            throw connectionFailure;
+        }
+
+		ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER_SIZE);
+        header.putInt(payload.length);
+        header.putInt(id);
+        header.flip();
+        ByteBuffer[] frame = { header, ByteBuffer.wrap(payload) };
+        try {
+            synchronized (writeLock) {
+                while (frame[1].hasRemaining() || header.hasRemaining()) {
+                    this.channel.write(frame);
+                }
             }
 		} catch (IOException e) {
+            pendingRequests.remove(id);
             LOGGER.severe("Failed to send the command to the server.");
             throw e;
         }
 
-        buffer = ByteBuffer.allocate(5242880);  // 5 MB buffer max
-        int numRead = 0;
+        return future;
+    }
+
+    /**
+     * Reads responses until the connection is closed, pending requests fail once it is
+     */
+    private void readResponses() {
+        ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER_SIZE);
         try {
-            numRead = channel.read(buffer);
+            while (true) {
+                header.clear();
+                readFully(header);
+                ByteBuffer response = ByteBuffer.allocate(header.getInt(0));
+                readFully(response);
+
+                CompletableFuture<byte[]> future = pendingRequests.remove(header.getInt(4));
+                if (future != null) {
+                    future.complete(response.array());
+                }
+            }
         } catch (IOException e) {
-            LOGGER.severe("Failed to read the result of the command.");
-            throw e;
-        }
-        if (numRead == -1) {
-            LOGGER.severe("Failed to read the result of the command.");
-            throw new IOException("Failed to read the result of the command.");
+            if (channel.isOpen()) {
+                LOGGER.severe("Failed to read the result of the command.");
+            }
+            connectionFailure = new IOException("Connection to the server was lost.", e);
+            for (Integer id : pendingRequests.keySet()) {
+                CompletableFuture<byte[]> future = pendingRequests.remove(id);
+                if (future != null) {
+                    future.completeExceptionally(connectionFailure);
+                }
+            }
         }
+    }
 
-        byte[] trimmedBytes = new byte[numRead];
-        System.arraycopy(buffer.array(), 0, trimmedBytes, 0, numRead);
-        
-        return trimmedBytes;
+    private void readFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) == -1) {
+                throw new IOException("Server closed the connection.");
+            }
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,148 @@
+package timecrypt.client.binary;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Encodes requests and decodes responses of the binary protocol of the server.
+ * A request starts with the operation code, a response with a status byte followed by the result or the failure message.
+ */
+public class BinaryProtocol {
+    public static final byte CREATE = 1;
+    public static final byte INSERT = 2;
+    public static final byte GET_RANGE = 3;
+    public static final byte GET_STATISTICS = 4;
+    public static final byte DELETE = 5;
+    public static final byte INSERT_BATCH = 6;
+    public static final byte GET_STATISTICS_SERIES = 7;
+
+    private static final byte OK = 0;
+
+    public static byte[] createStream(int k, String contract, byte[] modulus, String storage) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(CREATE);
+        out.writeInt(k);
+        out.writeUTF(contract);
+        out.writeInt(modulus == null ? 0 : modulus.length);
+        if (modulus != null) out.write(modulus);
+        out.writeUTF(storage == null ? "" : storage);
+        return bytes.toByteArray();
+    }
+
+    public static byte[] insert(String streamID, String key, byte[] data, ChunkMetadata metadata) throws IOException {
+        ByteArrayOutputStream encodedMetadata = new ByteArrayOutputStream();
+        metadata.encode(new DataOutputStream(encodedMetadata));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length + encodedMetadata.size() + 64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(INSERT);
+        writeUUID(out, streamID);
+        out.writeUTF(key);
+        out.writeInt(data.length);
+        out.write(data);
+        out.writeInt(encodedMetadata.size());
+        encodedMetadata.writeTo(out);
+        return bytes.toByteArray();
+    }
+
+    public static byte[] insertBatch(String streamID, List<String> keys, List<byte[]> data, List<ChunkMetadata> metadata) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(INSERT_BATCH);
+        writeUUID(out, streamID);
+        out.writeInt(keys.size());
+
+        ByteArrayOutputStream encodedMetadata = new ByteArrayOutputStream();
+        for (int i = 0; i < keys.size(); i++) {
+            out.writeUTF(keys.get(i));
+            out.writeInt(data.get(i).length);
+            out.write(data.get(i));
+
+            encodedMetadata.reset();
+            metadata.get(i).encode(new DataOutputStream(encodedMetadata));
+            out.writeInt(encodedMetadata.size());
+            encodedMetadata.writeTo(out);
+        }
+        return bytes.toByteArray();
+    }
+
+    public static byte[] range(byte operation, String streamID, long from, long to) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(operation);
+        writeUUID(out, streamID);
+        out.writeLong(from);
+        out.writeLong(to);
+        return bytes.toByteArray();
+    }
+
+    public static byte[] series(String streamID, long from, long to, long step) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(GET_STATISTICS_SERIES);
+        writeUUID(out, streamID);
+        out.writeLong(from);
+        out.writeLong(to);
+        out.writeLong(step);
+        return bytes.toByteArray();
+    }
+
+    public static byte[] delete(String streamID) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(DELETE);
+        writeUUID(out, streamID);
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Checks the status of the response and returns a stream positioned at the result
+     */
+    public static DataInputStream result(byte[] response) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(response));
+        if (in.readByte() != OK) {
+            throw new IOException(in.readUTF());
+        }
+        return in;
+    }
+
+    public static String readStreamID(DataInputStream in) throws IOException {
+        return new UUID(in.readLong(), in.readLong()).toString();
+    }
+
+    public static List<byte[]> readChunks(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        List<byte[]> chunks = new ArrayList<byte[]>(size);
+        for (int i = 0; i < size; i++) {
+            byte[] chunk = new byte[in.readInt()];
+            in.readFully(chunk);
+            chunks.add(chunk);
+        }
+        return chunks;
+    }
+
+    /**
+     * Reads the statistics of every window of a series, empty windows are null
+     */
+    public static List<ChunkMetadata> readSeries(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        List<ChunkMetadata> series = new ArrayList<ChunkMetadata>(size);
+        for (int i = 0; i < size; i++) {
+            series.add(in.readBoolean() ? ChunkMetadata.decode(in) : null);
+        }
+        return series;
+    }
+
+    private static void writeUUID(DataOutputStream out, String streamID) throws IOException {
+        UUID id = UUID.fromString(streamID);
+        out.writeLong(id.getMostSignificantBits());
+        out.writeLong(id.getLeastSignificantBits());
+    }
+}
@@ -0,0 +1,166 @@
+package timecrypt.client.binary;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * Chunk metadata with raw ciphertext bytes, as carried by the binary protocol.
+ * Integer ciphertexts (Paillier, OPE, first and last entry) hold the two's complement bytes of the number,
+ * opaque ones (EC-ElGamal, ORE) hold the encoding of the ciphertext.
+ */
+public class ChunkMetadata {
+    public static final int SUM = 0;
+    public static final int COUNT = 1;
+    public static final int MIN = 2;
+    public static final int MAX = 3;
+    public static final int FIRST = 4;
+    public static final int LAST = 5;
+
+    private static final String[] FIELD_NAMES = { "sum", "count", "min", "max", "first", "last" };
+    private static final int TAGS_MASK = 1 << 6;
+    private static JsonParser jsonParser = new JsonParser();
+
+    public long from;
+    public long to;
+    public long[] tags;
+
+    private byte[][] values;
+    private int opaque;
+
+    public ChunkMetadata(long from, long to) {
+        this.from = from;
+        this.to = to;
+        this.values = new byte[FIELD_NAMES.length][];
+        this.opaque = 0;
+    }
+
+    public ChunkMetadata set(int field, BigInteger ciphertext) {
+        values[field] = ciphertext.toByteArray();
+        opaque &= ~(1 << field);
+        return this;
+    }
+
+    public ChunkMetadata setEncoded(int field, byte[] encodedCiphertext) {
+        values[field] = encodedCiphertext;
+        opaque |= 1 << field;
+        return this;
+    }
+
+    public BigInteger getInteger(int field) {
+        return values[field] == null ? null : new BigInteger(values[field]);
+    }
+
+    public byte[] getEncoded(int field) {
+        return values[field];
+    }
+
+    public boolean isOpaque(int field) {
+        return (opaque & (1 << field)) != 0;
+    }
+
+    /**
+     * Converts metadata in the JSON format of the server, values are integer ciphertexts unless they are base64 encoded
+     */
+    public static ChunkMetadata fromJson(String json) {
+        JsonObject jobject = jsonParser.parse(json).getAsJsonObject();
+        ChunkMetadata md = new ChunkMetadata(jobject.get("from").getAsLong(), jobject.get("to").getAsLong());
+
+        for (int field = 0; field < FIELD_NAMES.length; field++) {
+            JsonElement value = jobject.get(FIELD_NAMES[field]);
+            if (value == null || value.isJsonNull()) {
+                continue;
+            }
+            try {
+                md.set(field, value.getAsBigInteger());
+            } catch (NumberFormatException e) { // EC-ElGamal and ORE ciphertexts are base64 encoded, as the server expects
+                md.setEncoded(field, Base64.getDecoder().decode(value.getAsString()));
+            }
+        }
+
+        JsonElement tags = jobject.get("tags");
+        if (tags != null && tags.isJsonArray()) {
+            JsonArray words = tags.getAsJsonArray();
+            md.tags = new long[words.size()];
+            for (int i = 0; i < words.size(); i++) {
+                md.tags[i] = words.get(i).getAsLong();
+            }
+        }
+
+        return md;
+    }
+
+    /**
+     * Renders the metadata in the same JSON format as the server's JSON protocol
+     */
+    public String toJson() {
+        StringBuilder str = new StringBuilder();
+        str.append("{");
+        str.append(String.format("\"from\": %s, \"to\": %s", from, to));
+        for (int field : new int[] { SUM, MIN, MAX, COUNT, FIRST, LAST }) {
+            if (values[field] == null) {
+                continue;
+            }
+            String value = isOpaque(field) ? "\"" + Base64.getEncoder().encodeToString(values[field]) + "\"" : getInteger(field).toString();
+            str.append(String.format(", \"%s\": %s", FIELD_NAMES[field], value));
+        }
+        if (tags != null) str.append(", \"tags\": " + Arrays.toString(tags));
+        str.append("}");
+
+        return str.toString();
+    }
+
+    public void encode(DataOutput out) throws IOException {
+        int fields = 0;
+        for (int field = 0; field < FIELD_NAMES.length; field++) {
+            if (values[field] != null) fields |= 1 << field;
+        }
+        if (tags != null) fields |= TAGS_MASK;
+
+        out.writeLong(from);
+        out.writeLong(to);
+        out.writeByte(fields);
+        out.writeByte(opaque);
+        for (byte[] value : values) {
+            if (value != null) {
+                out.writeInt(value.length);
+                out.write(value);
+            }
+        }
+        if (tags != null) {
+            out.writeInt(tags.length);
+            for (long word : tags) {
+                out.writeLong(word);
+            }
+        }
+    }
+
+    public static ChunkMetadata decode(DataInput in) throws IOException {
+        ChunkMetadata md = new ChunkMetadata(in.readLong(), in.readLong());
+        int fields = in.readUnsignedByte();
+        md.opaque = in.readUnsignedByte();
+
+        for (int field = 0; field < FIELD_NAMES.length; field++) {
+            if ((fields & (1 << field)) != 0) {
+                md.values[field] = new byte[in.readInt()];
+                in.readFully(md.values[field]);
+            }
+        }
+        if ((fields & TAGS_MASK) != 0) {
+            md.tags = new long[in.readInt()];
+            for (int i = 0; i < md.tags.length; i++) {
+                md.tags[i] = in.readLong();
+            }
+        }
+
+        return md;
+    }
+}
@@ -0,0 +1,17 @@
+package timecrypt.client.json;
+
+public class GetStatisticsSeriesRequest {
+    private final String operationID = "getstatisticsseries";
+
+    private String streamID;
+    private long from;
+    private long to;
+    private long step;
+
+    public GetStatisticsSeriesRequest(String streamID, long from, long to, long step) {
+        this.streamID = streamID;
+        this.from = from;
+        this.to = to;
+        this.step = step;
+    }
+}
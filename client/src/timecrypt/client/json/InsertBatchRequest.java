@@ -0,0 +1,32 @@
+package timecrypt.client.json;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class InsertBatchRequest {
+    private final String operationID = "insertbatch";
+
+    private String streamID;
+    private List<Chunk> chunks;
+
+    public InsertBatchRequest(String streamID) {
+        this.streamID = streamID;
+        this.chunks = new ArrayList<Chunk>();
+    }
+
+    public void add(String key, String data, String metadata) {
+        chunks.add(new Chunk(key, data, metadata));
+    }
+
+    private static class Chunk {
+        private String key;
+        private String data;
+        private String metadata;
+
+        private Chunk(String key, String data, String metadata) {
+            this.key = key;
+            this.data = data;
+            this.metadata = metadata;
+        }
+    }
+}
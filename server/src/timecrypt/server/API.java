@@ -1,32 +1,24 @@
 package timecrypt.server;
 
-import ch.ethz.dsg.ecelgamal.ECElGamal.ECElGamalCiphertext;
-import ch.ethz.dsg.ore.ORE.ORECiphertext;
-
 import com.google.gson.Gson;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
 import com.google.gson.JsonSyntaxException;
-import com.n1analytics.paillier.EncryptedNumber;
 import com.n1analytics.paillier.PaillierPublicKey;
 
-import java.math.BigInteger;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.Base64;
-import java.util.BitSet;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 import timecrypt.server.index.Metadata;
+import timecrypt.server.index.MetadataCodec;
 import timecrypt.server.index.MetadataConfiguration;
-import timecrypt.server.index.enums.HomomorphicAlgorithm;
-import timecrypt.server.index.enums.OrderPreservingAlgorithm;
-import timecrypt.server.index.Tree;
-import timecrypt.server.index.crypto.HomomorphicEncryptedNumber;
-import timecrypt.server.index.crypto.OrderPreservingEncryptedNumber;
+import timecrypt.server.index.StreamIndex;
 import timecrypt.server.storage.FileSystem;
 import timecrypt.server.storage.S3;
 import timecrypt.server.storage.Storage;
@@ -35,150 +27,328 @@ import timecrypt.server.utils.Utility;
 
 public class API {
     private static Logger LOGGER_PERFORMANCE = Logger.getLogger("TimeCrypt Performance");
+    private static Logger LOGGER_API = Logger.getLogger("TimeCrypt API");
+	private static final int MAX_SERIES_WINDOWS = 100000;
 
-	private static final int PAILLIER_EXPONENT = 2048;
-	
-	private static Map<UUID, Tree> indexMap = new HashMap<UUID, Tree>();
-	private static Storage storage;
+	private static StreamRegistry streams = new StreamRegistry();
 	private static Gson gson = new Gson();
-	private static JsonParser jsonParser = new JsonParser();
 	private static String[] arguments;
+	private static StreamSnapshots snapshots; // null unless -Dtimecrypt.snapshot.interval gives the seconds between snapshots
+	private static ScheduledExecutorService snapshotScheduler;
+	private static WriteAheadLog wal; // null unless -Dtimecrypt.wal is sync or async, requires snapshots
 
 	public static void init(String[] args)
     {
         arguments = args;
+
+        long interval = Long.getLong("timecrypt.snapshot.interval", 0L);
+        if (interval > 0 && snapshots == null) {
+            try {
+                snapshots = new StreamSnapshots(Paths.get(System.getProperty("user.dir"), "storage", "snapshots"));
+                streams.restore(snapshots.persistedStreams(), API::restoreStream);
+            } catch (IOException e) {
+                LOGGER_API.severe("Snapshots are disabled, the snapshot directory is not accessible: " + e.getMessage());
+                snapshots = null;
+                return;
+            }
+
+            String durability = System.getProperty("timecrypt.wal", "");
+            if (!durability.isEmpty()) {
+                try {
+                    wal = new WriteAheadLog(snapshots.directory, WriteAheadLog.Durability.valueOf(durability.toUpperCase()));
+                    wal.replay(API::replay);
+                } catch (IOException | IllegalArgumentException e) {
+                    LOGGER_API.severe("The write-ahead log is disabled: " + e.getMessage());
+                    wal = null;
+                }
+                snapshot(); // the replayed chunks are in the snapshots now, so the old segments are deleted
+            }
+
+            snapshotScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "timecrypt-snapshots");
+                thread.setDaemon(true);
+                return thread;
+            });
+            snapshotScheduler.scheduleWithFixedDelay(API::snapshot, interval, interval, TimeUnit.SECONDS);
+        }
     }
 
+	/**
+	 * Stops the periodic snapshots after taking a last one, so that a restart finds every chunk inserted so far.
+	 * Chunks held back for late chunks are indexed first.
+	 */
+	public static void close() {
+		if (snapshotScheduler != null) {
+			snapshotScheduler.shutdown();
+			try {
+				snapshotScheduler.awaitTermination(1, TimeUnit.MINUTES);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			for (Stream stream : streams.loaded()) {
+				stream.releaseAll();
+			}
+			snapshot();
+		}
+		if (wal != null) {
+			wal.close();
+		}
+	}
+
 	public static Object createStream(int k, String metaConfig, PaillierPublicKey pubKey, String datalayer) {
 		long start = System.nanoTime();
 
-		UUID id = null;
+		MetadataConfiguration mc = null;
+		try {
+			mc = parseConfiguration(metaConfig, pubKey);
+		} catch (JsonSyntaxException e) {
+			return new FailureJson("JSON provided for metadata is incorrect.");
+		}
+		if (!mc.isSupported()) {
+			return new FailureJson("The snapshot layout does not support prefix aggregates.");
+		}
+
 		// Ensure uniqueness of stream identifier within the system
-		while (id == null || indexMap.containsKey(id)) { 
-			id = UUID.randomUUID();
+		StreamIndex index = StreamIndex.create(k, mc);
+		Stream stream;
+		do {
+			UUID id = UUID.randomUUID();
+			stream = new Stream(id, index, createStorage(id, datalayer), wal);
+		} while (!streams.register(stream));
+
+		if (snapshots != null) {
+			try {
+				snapshots.writeDescriptor(stream.id, k, metaConfig, pubKey, datalayer);
+			} catch (IOException e) {
+				streams.remove(stream.id);
+				return new FailureJson("The stream could not be persisted.");
+			}
 		}
+		LOGGER_PERFORMANCE.info(Utility.logString(stream.id, "createStream", System.nanoTime()-start, 0));
+		
+		return stream.id.toString();
+	}
 
-		switch (datalayer) {
-			case "s3":
-				storage = new S3(id.toString(), arguments);
-				break;
-			default:
-				storage = new FileSystem();
-				break;
+	private static MetadataConfiguration parseConfiguration(String metaConfig, PaillierPublicKey pubKey) throws JsonSyntaxException {
+		MetadataConfiguration mc = gson.fromJson(metaConfig, MetadataConfiguration.class);
+		mc.setPaillierPublicKey(pubKey);
+		return mc;
+	}
+
+	/**
+	 * Loads a persisted stream from its snapshot, the index takes the persisted aggregates as they are
+	 */
+	private static Stream restoreStream(UUID id) {
+		long start = System.nanoTime();
+		try {
+			StreamSnapshots.Descriptor descriptor = snapshots.readDescriptor(id);
+			StreamIndex index = StreamIndex.create(descriptor.k, parseConfiguration(descriptor.contract, descriptor.pubKey));
+			snapshots.load(id, index);
+			LOGGER_PERFORMANCE.info(Utility.logString(id, "restoreStream", System.nanoTime()-start, index.getLeavesCount()));
+			Stream stream = new Stream(id, index, createStorage(id, descriptor.datalayer), wal);
+			stream.prune();
+			return stream;
+		} catch (Exception e) {
+			LOGGER_API.severe("Stream " + id + " could not be restored: " + e.toString());
+			return null;
+		}
+	}
+
+	/**
+	 * Snapshots the chunks inserted into every stream since the last snapshot.
+	 * The write-ahead log moves to a new segment first, every record of the older segments is then part of a snapshot.
+	 */
+	private static void snapshot() {
+		long segment = 0L;
+		if (wal != null) {
+			try {
+				segment = wal.rotate();
+			} catch (IOException e) {
+				LOGGER_API.severe("The write-ahead log could not be rotated: " + e.getMessage());
+			}
+		}
+
+		boolean complete = true;
+		for (Stream stream : streams.loaded()) {
+			stream.applyDurable(); // the rotation forced the inserts still waiting for the log
+			try {
+				stream.relogBuffered();
+			} catch (IOException e) {
+				complete = false;
+			}
+			complete &= snapshots.snapshot(stream);
+		}
+
+		if (wal != null && complete) {
+			try {
+				wal.deleteBefore(segment);
+			} catch (IOException e) {
+				LOGGER_API.warning("Old write-ahead log segments could not be deleted: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Applies a logged insert to its stream, streams deleted meanwhile are skipped
+	 */
+	private static void replay(UUID streamID, String key, byte[] metadata) {
+		Stream stream = streams.get(streamID);
+		if (stream == null) {
+			return;
 		}
 
-		MetadataConfiguration mc = null;
 		try {
-			mc = gson.fromJson(metaConfig, MetadataConfiguration.class);
-		} catch (JsonSyntaxException e) {
-			return new FailureJson("JSON provided for metadata is incorrect.");
+			stream.replay(key, MetadataCodec.decode(new DataInputStream(new ByteArrayInputStream(metadata)), stream.index.getMetadataConfig()));
+		} catch (IOException e) {
+			LOGGER_API.warning("A logged insert of stream " + streamID + " could not be decoded: " + e.getMessage());
 		}
-		mc.setPaillierPublicKey(pubKey);
+	}
 
-		indexMap.put(id, new Tree(k, mc));
-		LOGGER_PERFORMANCE.info(Utility.logString(id, "createStream", System.nanoTime()-start, 0));
-		
-		return id.toString();
+	/**
+	 * Every stream has its own storage, S3 keeps the chunks of a stream in a bucket named by its identifier
+	 */
+	private static Storage createStorage(UUID id, String datalayer) {
+		switch (datalayer) {
+			case "s3":
+				return new S3(id.toString(), arguments);
+			default:
+				return new FileSystem();
+		}
 	}
 
 	public static Object deleteStream(UUID streamID) {
-		indexMap.remove(streamID);
+		streams.remove(streamID);
+		if (snapshots != null && streamID != null) {
+			snapshots.delete(streamID);
+		}
 		System.gc();
 		return true;
 	}
 
 	public static Object insert(UUID streamID, String key, byte[] data, String metadata) {
-		long start = System.nanoTime();
-
-		Tree index = indexMap.get(streamID);
-		if (index == null) {
+		Stream stream = streams.get(streamID);
+		if (stream == null) {
 			return new FailureJson("No stream exists for the following ID.");
 		}
-		
-		MetadataConfiguration mdConfig = index.getMetadataConfig();
+
 		Metadata md = null;
 		try {
-			JsonObject jobject = jsonParser.parse(metadata).getAsJsonObject();
-			long from = jobject.get("from").getAsLong();
-			long to = jobject.get("to").getAsLong();
-
-			HomomorphicEncryptedNumber sum = null, count = null;
-			OrderPreservingEncryptedNumber min = null, max = null;
-			BigInteger first = null, last = null;
-			BitSet tags = null;
-			JsonElement jSum = jobject.get("sum");
-			JsonElement jCount = jobject.get("count");
-			JsonElement jMin = jobject.get("min");
-			JsonElement jMax = jobject.get("max");
-			JsonElement jFirst = jobject.get("first");
-			JsonElement jLast = jobject.get("last");
-			JsonElement jTags = jobject.get("tags");
-
-			if (jSum != null && mdConfig.sum) {
-				try {
-					sum = new HomomorphicEncryptedNumber(new EncryptedNumber(mdConfig.getPaillierContext(), jSum.getAsBigInteger(), PAILLIER_EXPONENT));
-				} catch (NumberFormatException e) { // ecelgamal case
-					if (mdConfig.algorithms.sum == HomomorphicAlgorithm.ECELGAMAL) {
-						sum = new HomomorphicEncryptedNumber(ECElGamalCiphertext.decode(Base64.getDecoder().decode(jSum.getAsString())));
-					} else {
-						throw e;
-					}
-				}
-			}
-			if (jCount != null && mdConfig.count) {
-				try {
-					count = new HomomorphicEncryptedNumber(new EncryptedNumber(mdConfig.getPaillierContext(), jSum.getAsBigInteger(), PAILLIER_EXPONENT));
-				} catch (NumberFormatException e) {
-					if (mdConfig.algorithms.count == HomomorphicAlgorithm.ECELGAMAL) {
-						count = new HomomorphicEncryptedNumber(ECElGamalCiphertext.decode(Base64.getDecoder().decode(jCount.getAsString())));
-					} else {
-						throw e;
-					}
-				}
-			}
-			if (jMin != null && mdConfig.min) { 
-				try {
-					min = new OrderPreservingEncryptedNumber(jMin.getAsBigInteger());
-				} catch (NumberFormatException e) {
-					if (mdConfig.algorithms.min == OrderPreservingAlgorithm.ORE) {
-						min = new OrderPreservingEncryptedNumber(ORECiphertext.decodeDefault(Base64.getDecoder().decode(jMin.getAsString())));
-					} else {
-						throw e;
-					}
-				}
-			}
-			if (jMax != null && mdConfig.max) {
-				try {
-					max = new OrderPreservingEncryptedNumber(jMax.getAsBigInteger());
-				} catch (NumberFormatException e) {
-					if (mdConfig.algorithms.max == OrderPreservingAlgorithm.ORE) {
-						max = new OrderPreservingEncryptedNumber(ORECiphertext.decodeDefault(Base64.getDecoder().decode(jMax.getAsString())));
-					} else {
-						throw e;
-					}
-				}
-			}
-			if (jFirst != null && mdConfig.first) first = jFirst.getAsBigInteger();
-			if (jLast != null && mdConfig.last) last = jLast.getAsBigInteger();
-			if (jTags != null && mdConfig.tags) tags = Utility.unmarshalBitSet(jTags.getAsJsonArray());
-			md = new Metadata(from, to, sum, count, min, max, first, last, tags);
+			md = Metadata.fromJson(metadata, stream.index.getMetadataConfig());
 		} catch (Exception e) {
 			return new FailureJson("JSON provided for metadata is incorrect.");
 		}
-		
+		return insert(stream, key, data, md);
+	}
+
+	/**
+	 * Inserts a chunk whose metadata is encoded in the binary format of {@link MetadataCodec}
+	 */
+	public static Object insertEncoded(UUID streamID, String key, byte[] data, byte[] metadata) {
+		Stream stream = streams.get(streamID);
+		if (stream == null) {
+			return new FailureJson("No stream exists for the following ID.");
+		}
+
+		Metadata md = null;
+		try {
+			md = MetadataCodec.decode(new DataInputStream(new ByteArrayInputStream(metadata)), stream.index.getMetadataConfig());
+		} catch (Exception e) {
+			return new FailureJson("Metadata provided is incorrect.");
+		}
+		return insert(stream, key, data, md);
+	}
+
+	private static Object insert(Stream stream, String key, byte[] data, Metadata md) {
+		long start = System.nanoTime();
+		MetadataConfiguration mdConfig = stream.index.getMetadataConfig();
+
 		// Check config match
 		if (!md.matchesConfig(mdConfig)) {
 			return new FailureJson("Metadata provided does not match metadata configuration for this stream.");
 		}
 
-		if (!index.dataIsNewer(md)) {
-			return new FailureJson("The index is append-only. Insertion of data in the middle is not allowed.");
+		try {
+			if (!stream.append(key, md)) {
+				return new FailureJson("The index is append-only. Insertion of data in the middle is not allowed.");
+			}
+		} catch (IOException e) {
+			return new FailureJson("Insertion failed to happen as the write-ahead log is not writable.");
+		}
+		LOGGER_PERFORMANCE.info(Utility.logString(stream.id, "insert", System.nanoTime()-start, stream.index.getLeavesCount()));
+
+		if (!stream.storage.store(stream.id.toString(), key, data)) {
+			return new FailureJson("Insertion failed to happen due to storage problems.");
+		}
+
+		return true;
+	}
+
+	/**
+	 * Inserts an ordered batch of chunks of one stream, keys, data and metadata are matched by position
+	 */
+	public static Object insertBatch(UUID streamID, List<String> keys, List<byte[]> data, List<String> metadata) {
+		Stream stream = streams.get(streamID);
+		if (stream == null) {
+			return new FailureJson("No stream exists for the following ID.");
+		}
+
+		List<Metadata> mds = new ArrayList<Metadata>(metadata.size());
+		try {
+			for (String md : metadata) {
+				mds.add(Metadata.fromJson(md, stream.index.getMetadataConfig()));
+			}
+		} catch (Exception e) {
+			return new FailureJson("JSON provided for metadata is incorrect.");
 		}
+		return insertBatch(stream, keys, data, mds);
+	}
 
-		index.insert(key, md);
-		LOGGER_PERFORMANCE.info(Utility.logString(streamID, "insert", System.nanoTime()-start, index.getLeavesCount()));
+	/**
+	 * Inserts an ordered batch of chunks whose metadata is encoded in the binary format of {@link MetadataCodec}
+	 */
+	public static Object insertBatchEncoded(UUID streamID, List<String> keys, List<byte[]> data, List<byte[]> metadata) {
+		Stream stream = streams.get(streamID);
+		if (stream == null) {
+			return new FailureJson("No stream exists for the following ID.");
+		}
 
-		if (!storage.store(streamID.toString(), key, data)) {
+		List<Metadata> mds = new ArrayList<Metadata>(metadata.size());
+		try {
+			for (byte[] md : metadata) {
+				mds.add(MetadataCodec.decode(new DataInputStream(new ByteArrayInputStream(md)), stream.index.getMetadataConfig()));
+			}
+		} catch (Exception e) {
+			return new FailureJson("Metadata provided is incorrect.");
+		}
+		return insertBatch(stream, keys, data, mds);
+	}
+
+	private static Object insertBatch(Stream stream, List<String> keys, List<byte[]> data, List<Metadata> mds) {
+		long start = System.nanoTime();
+		MetadataConfiguration mdConfig = stream.index.getMetadataConfig();
+
+		if (keys.isEmpty()) {
+			return new FailureJson("The batch does not contain any chunks.");
+		}
+		if (keys.size() != data.size() || keys.size() != mds.size()) {
+			return new FailureJson("Every chunk of the batch requires a key, data and metadata.");
+		}
+		for (Metadata md : mds) {
+			if (!md.matchesConfig(mdConfig)) {
+				return new FailureJson("Metadata provided does not match metadata configuration for this stream.");
+			}
+		}
+
+		try {
+			if (!stream.appendBatch(keys, mds)) {
+				return new FailureJson("The index is append-only. Insertion of data in the middle is not allowed.");
+			}
+		} catch (IOException e) {
+			return new FailureJson("Insertion failed to happen as the write-ahead log is not writable.");
+		}
+		LOGGER_PERFORMANCE.info(Utility.logString(stream.id, "insertBatch", System.nanoTime()-start, stream.index.getLeavesCount()));
+
+		if (!stream.storage.storeBatch(stream.id.toString(), keys, data)) {
 			return new FailureJson("Insertion failed to happen due to storage problems.");
 		}
 
@@ -186,17 +356,40 @@ public class API {
 	}
 
 	public static Object getRange(UUID streamID, long fromTime, long toTime) {
-		Tree index = indexMap.get(streamID);
-		if (index == null) {
+		Object results = getRangeData(streamID, fromTime, toTime);
+		if (results instanceof FailureJson) {
+			return results;
+		}
+
+		@SuppressWarnings("unchecked") // getRangeData returns the chunks unless it fails
+		List<byte[]> chunks = (List<byte[]>) results;
+		List<String> encoded = new ArrayList<String>();
+		for (byte[] retrieved : chunks) {
+			encoded.add(Utility.encodeBase64(retrieved));
+		}
+		return encoded;
+	}
+
+	/**
+	 * Retrieves the raw chunks stored under the range
+	 */
+	public static Object getRangeData(UUID streamID, long fromTime, long toTime) {
+		Stream stream = streams.get(streamID);
+		if (stream == null) {
 			return new FailureJson("No stream exists for the following ID.");
 		}
 
-		List<String> results = new ArrayList<String>();
-		for (String key : index.getRange(fromTime, toTime)) {
-			byte[] retrieved = null;
+		List<String> keys;
+		try {
+			keys = stream.read(index -> index.getRange(fromTime, toTime));
+		} catch (IllegalArgumentException e) {
+			return new FailureJson("The range provided is incorrect.");
+		}
+
+		List<byte[]> results = new ArrayList<byte[]>();
+		for (String key : keys) {
 			try {
-				retrieved = storage.get(streamID.toString(), key);
-				results.add(Utility.encodeBase64(retrieved));
+				results.add(stream.storage.get(stream.id.toString(), key));
 			} catch (Exception e) {
 				return new FailureJson("Failed to retrieve the results due to: " + e.toString());
 			}
@@ -210,16 +403,115 @@ public class API {
 	}
 	
 	public static Object getStatistics(UUID streamID, long from, long to) {
-		Tree index = indexMap.get(streamID);
-		if (index == null) {
+		Stream stream = streams.get(streamID);
+		Object statistics = statistics(stream, from, to);
+		if (statistics instanceof FailureJson) {
+			return statistics;
+		}
+
+		return ((StatisticsCache.Entry) statistics).json(stream.index.getMetadataConfig());
+	}
+
+	/**
+	 * Returns the statistics of the range in the encoding of {@link MetadataCodec}
+	 */
+	public static Object getEncodedStatistics(UUID streamID, long from, long to) {
+		Object statistics = statistics(streams.get(streamID), from, to);
+		if (statistics instanceof FailureJson) {
+			return statistics;
+		}
+
+		return ((StatisticsCache.Entry) statistics).encoded();
+	}
+
+	/**
+	 * Consolidates the statistics of the range into a single metadata object
+	 */
+	public static Object getConsolidatedStatistics(UUID streamID, long from, long to) {
+		Object statistics = statistics(streams.get(streamID), from, to);
+		if (statistics instanceof FailureJson) {
+			return statistics;
+		}
+
+		return ((StatisticsCache.Entry) statistics).metadata;
+	}
+
+	private static Object statistics(Stream stream, long from, long to) {
+		if (stream == null) {
 			return new FailureJson("No stream exists for the following ID.");
 		}
 
-		List<Metadata> metadata = index.getMetadata(from, to);
-		if (metadata.size() == 0) {
+		StatisticsCache.Entry statistics;
+		try {
+			statistics = stream.statistics(from, to);
+		} catch (IllegalArgumentException e) {
+			return new FailureJson("The range provided is incorrect.");
+		}
+
+		if (statistics == null) {
 			return new FailureJson("There is no data information about the range provided.");
 		}
+		return statistics;
+	}
+
+	public static Object getStatisticsSeries(UUID streamID, long from, long to, long step) {
+		Stream stream = streams.get(streamID);
+		Object series = series(stream, from, to, step);
+		if (series instanceof FailureJson) {
+			return series;
+		}
 
-		return Metadata.consolidate(index.getMetadataConfig(), metadata).toJson(index.getMetadataConfig());
+		MetadataConfiguration config = stream.index.getMetadataConfig();
+		@SuppressWarnings("unchecked") // series returns the windows unless it fails
+		List<Metadata> windows = (List<Metadata>) series;
+		List<String> results = new ArrayList<String>();
+		for (Metadata window : windows) {
+			results.add(window == null ? null : window.toJson(config));
+		}
+		return results;
+	}
+
+	/**
+	 * Consolidates the statistics of every window of the given step within the range, empty windows are null
+	 */
+	public static Object getConsolidatedStatisticsSeries(UUID streamID, long from, long to, long step) {
+		return series(streams.get(streamID), from, to, step);
+	}
+
+	private static Object series(Stream stream, long from, long to, long step) {
+		if (stream == null) {
+			return new FailureJson("No stream exists for the following ID.");
+		}
+		if (to < from || step <= 0 || to - from < 0) { // the length of the range overflows
+			return new FailureJson("The range or the step provided is incorrect.");
+		}
+		if ((to - from) / step >= MAX_SERIES_WINDOWS) {
+			return new FailureJson(String.format("A series can contain at most %s windows.", MAX_SERIES_WINDOWS));
+		}
+
+		List<Metadata> consolidated;
+		try {
+			consolidated = stream.read(index -> {
+				List<Metadata> windows = new ArrayList<Metadata>();
+				for (List<Metadata> window : index.getMetadataSeries(from, to, step)) {
+					windows.add(window.size() == 0 ? null : Metadata.consolidate(index.getMetadataConfig(), window));
+				}
+				return windows;
+			});
+		} catch (IllegalArgumentException e) {
+			return new FailureJson("The range or the step provided is incorrect.");
+		}
+
+		boolean empty = true;
+		for (Metadata window : consolidated) {
+			if (window != null) {
+				empty = false;
+				break;
+			}
+		}
+		if (empty) {
+			return new FailureJson("There is no data information about the range provided.");
+		}
+		return consolidated;
 	}
 }
@@ -0,0 +1,110 @@
+package timecrypt.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import timecrypt.server.protocol.FrameDecoder;
+
+/**
+ * Server serving every connection with blocking socket I/O on its own thread.
+ * Virtual threads are used when the JVM supports them, so storage calls can block without stalling other clients.
+ * Speaks the same framed protocol as {@link Server}, pipelined requests of a connection are executed one after another.
+ */
+public class BlockingServer implements Runnable {
+    private static Logger LOGGER_API = Logger.getLogger("TimeCrypt API");
+    private static final int INCOMPLETE_REQUEST_TIMEOUT = 300000; // allow only 5 minutes to get the full request
+
+    private ServerSocket serverSocket;
+    private ExecutorService connections;
+    private RequestHandler handler;
+
+    public BlockingServer(String ip, int port, String[] args) throws IOException {
+        serverSocket = new ServerSocket();
+        serverSocket.bind(new InetSocketAddress(ip, port));
+        connections = newThreadPerTaskExecutor();
+        handler = new RequestHandler();
+        LOGGER_API.setLevel(Level.WARNING);
+        API.init(args);
+    }
+
+    public void run() {
+        LOGGER_API.info("Server is running");
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket client = serverSocket.accept();
+                connections.execute(() -> serve(client));
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    LOGGER_API.severe(e.toString() + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    public void terminate() throws IOException {
+        serverSocket.close();
+        connections.shutdownNow();
+        API.close();
+    }
+
+    private void serve(Socket client) {
+        try (Socket socket = client;
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()))) {
+            socket.setTcpNoDelay(true);
+
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) { // client closed the connection
+                    return;
+                }
+                int id = in.readInt();
+                if (length < 0 || length > FrameDecoder.MAX_FRAME_SIZE) {
+                    throw new IOException(String.format("Invalid frame length %s.", length));
+                }
+
+                byte[] request = new byte[length];
+                socket.setSoTimeout(INCOMPLETE_REQUEST_TIMEOUT);
+                in.readFully(request);
+                socket.setSoTimeout(0);
+
+                byte[] response = handler.handleSafely(request);
+                out.writeInt(response.length);
+                out.writeInt(id);
+                out.write(response);
+                if (in.available() == 0) { // write pipelined responses together
+                    out.flush();
+                }
+            }
+        } catch (IOException e) {
+            LOGGER_API.warning(e.toString() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Virtual threads are available from Java 21. The server is built for older releases, so they are looked up when it starts
+     * and a JVM without them falls back to a cached pool of platform threads, one per connection.
+     */
+    private static ExecutorService newThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            LOGGER_API.warning(String.format("Virtual threads need a Java 21 runtime, Java %s serves every connection of the blocking mode with a platform thread.",
+                System.getProperty("java.specification.version")));
+            return Executors.newCachedThreadPool();
+        }
+    }
+}
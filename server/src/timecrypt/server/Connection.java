@@ -0,0 +1,93 @@
+package timecrypt.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+import timecrypt.server.protocol.Frame;
+import timecrypt.server.protocol.FrameDecoder;
+
+/**
+ * State of a single client connection. Only accessed by the event loop owning the connection.
+ * Clients may pipeline requests, every response carries the identifier of its request and is written as soon as it completes.
+ * Requests keep the semantics of sequential execution: reads run concurrently with each other,
+ * while a request modifying streams waits for all earlier requests and blocks all later ones until it completes.
+ * No more requests are started while responses are waiting for the socket to become writable.
+ */
+class Connection {
+    private static final int MAX_IN_FLIGHT = 64;
+
+    final SocketChannel channel;
+    final FrameDecoder decoder;
+
+    private final SelectionKey key;
+    private final EventLoop loop;
+    private final Queue<Frame> pendingRequests;
+    private final Queue<ByteBuffer> pendingWrites;
+    private int executing;
+    private boolean executingWrite;
+
+    Connection(SocketChannel channel, SelectionKey key, EventLoop loop) {
+        this.channel = channel;
+        this.key = key;
+        this.loop = loop;
+        this.decoder = new FrameDecoder();
+        this.pendingRequests = new ArrayDeque<Frame>();
+        this.pendingWrites = new ArrayDeque<ByteBuffer>();
+        this.executing = 0;
+        this.executingWrite = false;
+    }
+
+    void received(Frame request) {
+        pendingRequests.add(request);
+        executeNext();
+    }
+
+    void completed(Frame request, byte[] response) throws IOException {
+        executing--;
+        executingWrite = false; // a modifying request is always executed alone
+        if (!key.isValid()) { // connection closed or event loop terminated
+            return;
+        }
+
+        pendingWrites.add(FrameDecoder.header(response.length, request.id));
+        pendingWrites.add(ByteBuffer.wrap(response));
+        flush();
+    }
+
+    /**
+     * Writes as much of the queued responses as the socket accepts and waits for it to become writable again otherwise
+     */
+    void flush() throws IOException {
+        ByteBuffer buffer;
+        while ((buffer = pendingWrites.peek()) != null) {
+            channel.write(buffer);
+            if (buffer.hasRemaining()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                return;
+            }
+            pendingWrites.poll();
+        }
+
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        executeNext();
+    }
+
+    private void executeNext() {
+        while (pendingWrites.isEmpty() && executing < MAX_IN_FLIGHT && !pendingRequests.isEmpty() && !executingWrite) {
+            Frame request = pendingRequests.peek();
+            boolean readOnly = RequestHandler.isReadOnly(request.payload);
+            if (!readOnly && executing > 0) {
+                return; // wait for the earlier reads to complete
+            }
+
+            pendingRequests.poll();
+            executing++;
+            executingWrite = !readOnly;
+            loop.dispatch(this, request);
+        }
+    }
+}
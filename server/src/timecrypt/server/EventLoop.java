@@ -0,0 +1,163 @@
+package timecrypt.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Logger;
+
+import timecrypt.server.protocol.Frame;
+
+/**
+ * I/O event loop serving the connections assigned to it by the server.
+ * Requests are handed over to the worker pool of the server and responses are written back on this loop.
+ */
+class EventLoop implements Runnable {
+    private static Logger LOGGER_API = Logger.getLogger("TimeCrypt API");
+    private static final long INCOMPLETE_REQUEST_TIMEOUT = 300000L; // allow only 5 minutes to get the full request
+    private static final long STALLED_CHECK_INTERVAL = 10000L; // idle connections are checked for stalled requests this often
+    private static final int READ_BUFFER_SIZE = 102400;
+
+    private final Server server;
+    private final Selector selector;
+    private final Queue<Runnable> tasks;
+    private final ByteBuffer readBuffer; // reused for every read, the bytes are copied into the frame decoder of the connection
+    private long lastStalledCheck;
+
+    EventLoop(Server server) throws IOException {
+        this.server = server;
+        this.selector = Selector.open();
+        this.tasks = new ConcurrentLinkedQueue<Runnable>();
+        this.readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        this.lastStalledCheck = System.currentTimeMillis();
+    }
+
+    public void run() {
+        while (selector.isOpen()) {
+            try {
+                selector.select(STALLED_CHECK_INTERVAL);
+                runTasks();
+
+                Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+                while (selectedKeys.hasNext()) {
+                    SelectionKey key = selectedKeys.next();
+                    selectedKeys.remove();
+
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isWritable()) {
+                            connection.flush();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            read(connection);
+                        }
+                    } catch (IOException e) {
+                        LOGGER_API.warning(e.toString() + ": " + e.getMessage());
+                        connection.channel.close();
+                    }
+                }
+                closeStalled();
+            } catch (IOException | ClosedSelectorException e) {
+                LOGGER_API.severe(e.toString() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Hands over an accepted connection to this loop
+     */
+    void register(SocketChannel client) {
+        execute(() -> {
+            try {
+                client.configureBlocking(false);
+                SelectionKey key = client.register(selector, SelectionKey.OP_READ);
+                key.attach(new Connection(client, key, this));
+            } catch (IOException e) {
+                LOGGER_API.warning(e.toString() + ": " + e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Runs the task on the loop thread
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Executes the request on the worker pool and delivers its response back to the owning loop
+     */
+    void dispatch(Connection connection, Frame request) {
+        server.execute(request.payload, response -> execute(() -> {
+            try {
+                connection.completed(request, response);
+            } catch (IOException e) {
+                LOGGER_API.warning(e.toString() + ": " + e.getMessage());
+                close(connection);
+            }
+        }));
+    }
+
+    void terminate() throws IOException {
+        selector.close();
+    }
+
+    private void read(Connection connection) throws IOException {
+        readBuffer.clear();
+        int numRead = connection.channel.read(readBuffer);
+
+        if (numRead == -1) {
+            connection.channel.close();
+            return;
+        }
+
+        readBuffer.flip();
+        connection.decoder.append(readBuffer);
+
+        Frame request;
+        while ((request = connection.decoder.nextFrame()) != null) {
+            connection.received(request);
+        }
+    }
+
+    /**
+     * Closes the connections whose partial request has been waiting for the rest for too long, a client gone idle included
+     */
+    private void closeStalled() {
+        long now = System.currentTimeMillis();
+        if (now - lastStalledCheck < STALLED_CHECK_INTERVAL) {
+            return;
+        }
+        lastStalledCheck = now;
+
+        for (SelectionKey key : selector.keys()) {
+            Connection connection = (Connection) key.attachment();
+            if (key.isValid() && connection != null && connection.decoder.isStalled(INCOMPLETE_REQUEST_TIMEOUT)) {
+                LOGGER_API.warning("Closing a connection whose request stayed incomplete.");
+                close(connection);
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    private void close(Connection connection) {
+        try {
+            connection.channel.close();
+        } catch (IOException e) {
+            LOGGER_API.warning(e.toString() + ": " + e.getMessage());
+        }
+    }
+}
@@ -20,7 +20,13 @@ public class Main {
         String[] additionalArgs = Arrays.copyOfRange(args, 2, args.length);
 
         try {
-            Server server = new Server(ip, port, additionalArgs);
+            // Either the selector based server or the thread-per-connection server, -Dtimecrypt.server.mode=blocking
+            Runnable server;
+            if (System.getProperty("timecrypt.server.mode", "nio").equalsIgnoreCase("blocking")) {
+                server = new BlockingServer(ip, port, additionalArgs);
+            } else {
+                server = new Server(ip, port, additionalArgs);
+            }
             new Thread(server).start();
         } catch (IOException e) {
             e.printStackTrace();
@@ -0,0 +1,92 @@
+package timecrypt.server;
+
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import timecrypt.server.index.Metadata;
+
+/**
+ * Holds the chunks of a stream that may still be preceded by late chunks, ordered by their start.
+ * The watermark trails the newest start seen by the lateness of the stream, chunks up to it are released to the index in order.
+ */
+class ReorderBuffer {
+    private final long lateness;
+    private final TreeMap<Long, Map.Entry<String, Metadata>> chunks;
+    private long newest;
+
+    ReorderBuffer(long lateness) {
+        this.lateness = lateness;
+        this.chunks = new TreeMap<Long, Map.Entry<String, Metadata>>();
+        this.newest = Long.MIN_VALUE;
+    }
+
+    boolean contains(long from) {
+        return chunks.containsKey(from);
+    }
+
+    void add(String key, Metadata md) {
+        chunks.put(md.from, new AbstractMap.SimpleImmutableEntry<String, Metadata>(key, md));
+        newest = Math.max(newest, md.from);
+    }
+
+    /**
+     * Returns the start of the last chunk released once the given chunks are added as well, Long.MIN_VALUE if none is
+     */
+    long lastReleasedWith(List<Metadata> added) {
+        long newestWith = newest;
+        for (Metadata md : added) {
+            newestWith = Math.max(newestWith, md.from);
+        }
+        if (newestWith == Long.MIN_VALUE) {
+            return Long.MIN_VALUE;
+        }
+
+        long watermark = newestWith - lateness;
+        Long last = chunks.floorKey(watermark);
+        long released = last == null ? Long.MIN_VALUE : last;
+        for (Metadata md : added) {
+            if (md.from <= watermark) {
+                released = Math.max(released, md.from);
+            }
+        }
+        return released;
+    }
+
+    /**
+     * Moves the chunks up to the watermark into the lists in time order
+     */
+    void release(List<String> keys, List<Metadata> mds) {
+        drain(chunks.headMap(newest - lateness, true), keys, mds);
+    }
+
+    void releaseAll(List<String> keys, List<Metadata> mds) {
+        drain(chunks, keys, mds);
+    }
+
+    /**
+     * Copies the buffered chunks into the lists without releasing them
+     */
+    void buffered(List<String> keys, List<Metadata> mds) {
+        for (Map.Entry<String, Metadata> chunk : chunks.values()) {
+            keys.add(chunk.getKey());
+            mds.add(chunk.getValue());
+        }
+    }
+
+    boolean isEmpty() {
+        return chunks.isEmpty();
+    }
+
+    private void drain(Map<Long, Map.Entry<String, Metadata>> released, List<String> keys, List<Metadata> mds) {
+        Iterator<Map.Entry<String, Metadata>> it = released.values().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Metadata> chunk = it.next();
+            keys.add(chunk.getKey());
+            mds.add(chunk.getValue());
+            it.remove();
+        }
+    }
+}
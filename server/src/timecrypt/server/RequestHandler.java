@@ -0,0 +1,195 @@
+package timecrypt.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
+import com.n1analytics.paillier.PaillierPublicKey;
+
+import timecrypt.server.protocol.BinaryProtocol;
+import timecrypt.server.utils.FailureJson;
+import timecrypt.server.utils.Utility;
+
+/**
+ * Deserialises a request, calls the API and serialises its result.
+ * Shared by the server implementations and safe to use from several threads.
+ */
+public class RequestHandler {
+    private static Logger LOGGER_API = Logger.getLogger("TimeCrypt API");
+
+    private Gson gson;
+    private JsonParser jsonParser;
+    private BinaryProtocol binaryProtocol;
+
+    public RequestHandler() {
+        gson = new GsonBuilder().disableHtmlEscaping().create(); // keep the base64 padding of chunks readable for clients
+        jsonParser = new JsonParser();
+        binaryProtocol = new BinaryProtocol();
+    }
+
+    public byte[] handle(byte[] request) {
+        if (BinaryProtocol.isBinary(request)) {
+            return binaryProtocol.handle(request);
+        }
+
+        Object apiResult = null;
+        try {
+            apiResult = callMethod(new String(request, Charset.forName("UTF-8")));
+        } catch (JsonSyntaxException e) {
+            apiResult = new FailureJson("JSON provided is incorrect.");
+        } catch (OutOfMemoryError e) { // Out of memory error should not fail the server
+            apiResult = new FailureJson("TimeCrypt ran out of memory.");
+        }
+
+        return gson.toJson(apiResult).getBytes(Charset.forName("UTF-8"));
+    }
+
+    /**
+     * Checks whether the request only reads streams, without deserialising the whole request.
+     * Requests that cannot be classified are treated as modifying ones.
+     */
+    public static boolean isReadOnly(byte[] request) {
+        if (BinaryProtocol.isBinary(request)) {
+            return BinaryProtocol.isReadOnly(request);
+        }
+
+        try (JsonReader reader = new JsonReader(new InputStreamReader(new ByteArrayInputStream(request), Charset.forName("UTF-8")))) {
+            reader.setLenient(true);
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (reader.nextName().equals("operationID")) {
+                    String operationName = reader.nextString();
+                    return operationName.equals("getrange") || operationName.equals("getstatistics") || operationName.equals("getstatisticsseries");
+                }
+                reader.skipValue();
+            }
+        } catch (IOException | IllegalStateException e) {}
+        return false;
+    }
+
+    public byte[] failure(String msg) {
+        return gson.toJson(new FailureJson(msg)).getBytes(Charset.forName("UTF-8"));
+    }
+
+    /**
+     * Failure response in the protocol of the request
+     */
+    public byte[] failure(byte[] request, String msg) {
+        return BinaryProtocol.isBinary(request) ? binaryProtocol.failure(msg) : failure(msg);
+    }
+
+    /**
+     * Handles the request, a request failing unexpectedly is answered with a failure instead of leaving the client waiting
+     */
+    public byte[] handleSafely(byte[] request) {
+        try {
+            return handle(request);
+        } catch (RuntimeException e) {
+            LOGGER_API.warning("Request failed: " + e.toString());
+            return failure(request, "TimeCrypt could not execute the request.");
+        }
+    }
+
+    private Object callMethod(String json) {
+        LOGGER_API.info(json);
+        JsonObject jobject = null;
+        try {
+            jobject = jsonParser.parse(json).getAsJsonObject();
+        } catch (IllegalStateException e) {
+            return new FailureJson("JSON provided is incorrect.");
+        }
+        
+        try {
+            String operationName = jobject.get("operationID").getAsString();
+            switch (operationName) {
+                case "insert": {
+                    String streamID = jobject.get("streamID").getAsString();
+                    String key = jobject.get("key").getAsString();
+                    String data = jobject.get("data").getAsString();
+                    String metadata = jobject.get("metadata").getAsString();
+
+                    return API.insert(Utility.UUIDFromString(streamID), key, Utility.decodeBase64(data), metadata);
+                }
+                case "insertbatch": {
+                    String streamID = jobject.get("streamID").getAsString();
+                    JsonArray chunks = jobject.get("chunks").getAsJsonArray();
+
+                    List<String> keys = new ArrayList<String>(chunks.size());
+                    List<byte[]> data = new ArrayList<byte[]>(chunks.size());
+                    List<String> metadata = new ArrayList<String>(chunks.size());
+                    for (JsonElement element : chunks) {
+                        JsonObject chunk = element.getAsJsonObject();
+                        keys.add(chunk.get("key").getAsString());
+                        data.add(Utility.decodeBase64(chunk.get("data").getAsString()));
+                        metadata.add(chunk.get("metadata").getAsString());
+                    }
+
+                    return API.insertBatch(Utility.UUIDFromString(streamID), keys, data, metadata);
+                }
+                case "create": {
+                    int k = jobject.get("k").getAsInt();
+                    String contract = jobject.get("contract").getAsString();
+                    
+                    PaillierPublicKey pubkey = null;                
+                    try {
+                        String pubKeyModulus = jobject.get("modulus").getAsString();
+                        pubkey = Utility.unmarshalPublicKey(pubKeyModulus);
+                    } catch (Exception e) {}
+                    
+                    String storage;
+                    try { 
+                        storage = jobject.get("storage").getAsString();
+                    } catch (Exception e) {
+                        storage = "";
+                    }
+                    return API.createStream(k, contract, pubkey, storage.toLowerCase());
+                }
+                case "getrange": {
+                    String streamID = jobject.get("streamID").getAsString();
+                    long from = jobject.get("from").getAsLong();
+                    long to = jobject.get("to").getAsLong();
+
+                    return API.getRange(Utility.UUIDFromString(streamID), from, to);
+                }
+                case "getstatistics": {
+                    String streamID = jobject.get("streamID").getAsString();
+                    long from = jobject.get("from").getAsLong();
+                    long to = jobject.get("to").getAsLong();
+
+                    return API.getStatistics(Utility.UUIDFromString(streamID), from, to);
+                }
+                case "getstatisticsseries": {
+                    String streamID = jobject.get("streamID").getAsString();
+                    long from = jobject.get("from").getAsLong();
+                    long to = jobject.get("to").getAsLong();
+                    long step = jobject.get("step").getAsLong();
+
+                    return API.getStatisticsSeries(Utility.UUIDFromString(streamID), from, to, step);
+                }
+                case "delete": {
+                    String streamID = jobject.get("streamID").getAsString();
+                    return API.deleteStream(Utility.UUIDFromString(streamID));
+                }
+                default: {
+                    String msg = String.format("Operation %s is not supported", operationName);
+                    LOGGER_API.warning(msg);
+                    return new FailureJson(msg);
+                }
+            }
+        } catch (NullPointerException e) {
+            return new FailureJson("One of the command required JSON attributes were not provided."); 
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package timecrypt.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import timecrypt.server.index.Metadata;
+import timecrypt.server.index.MetadataCodec;
+import timecrypt.server.index.MetadataConfiguration;
+
+/**
+ * Consolidated statistics of the recently queried ranges of a stream, least recently used ranges are evicted first.
+ * The index is append-only, so new chunks only change the statistics of the ranges reaching them.
+ */
+class StatisticsCache {
+    private final int capacity;
+    private final LinkedHashMap<Range, Entry> entries;
+    private long generation; // changes with every insert, results computed before one are not cached
+
+    StatisticsCache(int capacity) {
+        this.capacity = capacity;
+        this.entries = new LinkedHashMap<Range, Entry>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<Range, StatisticsCache.Entry> eldest) {
+                return size() > StatisticsCache.this.capacity;
+            }
+        };
+    }
+
+    synchronized Entry get(long from, long to) {
+        return entries.get(new Range(from, to));
+    }
+
+    synchronized long generation() {
+        return generation;
+    }
+
+    /**
+     * Caches the statistics unless the index changed since the given generation
+     */
+    synchronized void put(long from, long to, Entry entry, long generation) {
+        if (generation == this.generation) {
+            entries.put(new Range(from, to), entry);
+        }
+    }
+
+    /**
+     * Drops the ranges that fully contain chunks ending at the given time or later
+     */
+    synchronized void invalidate(long chunkTo) {
+        generation++;
+        Iterator<Range> it = entries.keySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().to >= chunkTo) {
+                it.remove();
+            }
+        }
+    }
+
+    synchronized void clear() {
+        generation++;
+        entries.clear();
+    }
+
+    /**
+     * Statistics of a range with the encodings of the responses, each encoding is computed once on first use
+     */
+    static class Entry {
+        final Metadata metadata;
+        private volatile String json;
+        private volatile byte[] encoded;
+
+        Entry(Metadata metadata) {
+            this.metadata = metadata;
+        }
+
+        String json(MetadataConfiguration config) {
+            if (json == null) {
+                json = metadata.toJson(config);
+            }
+            return json;
+        }
+
+        byte[] encoded() {
+            if (encoded == null) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                try {
+                    MetadataCodec.encode(metadata, new DataOutputStream(bytes));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e); // not thrown by a byte array stream
+                }
+                encoded = bytes.toByteArray();
+            }
+            return encoded;
+        }
+    }
+
+    private static final class Range {
+        final long from;
+        final long to;
+
+        Range(long from, long to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Range && ((Range) o).from == from && ((Range) o).to == to;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(from) * 31 + Long.hashCode(to);
+        }
+    }
+}
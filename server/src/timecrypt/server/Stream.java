@@ -0,0 +1,319 @@
+package timecrypt.server;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Function;
+
+import timecrypt.server.index.Metadata;
+import timecrypt.server.index.StreamIndex;
+import timecrypt.server.storage.Storage;
+
+/**
+ * A stream with its index and the storage of its chunks.
+ * Inserts take the write lock of the stream while queries share its read lock, so queries only wait for inserts of the same stream.
+ * Indexes publishing immutable snapshots are queried without the lock at all.
+ * With a write-ahead log, the chunks are logged under the write lock before the index changes.
+ * With the sync policy the index only takes the chunks once they are on disk, so a failed insert never shows in the index.
+ * Streams accepting late chunks hold new chunks in a reorder buffer until no earlier chunk can arrive anymore.
+ * Chunks dropped by the retention of the stream are deleted from the storage in the background.
+ */
+class Stream {
+    private static final int STATISTICS_CACHE_SIZE = Integer.getInteger("timecrypt.statistics.cache", 256); // ranges per stream
+    private static final ExecutorService storageCleaner = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "timecrypt-retention");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    final UUID id;
+    final StreamIndex index;
+    final Storage storage;
+    private final StampedLock lock;
+    private final WriteAheadLog wal; // null if inserts are not logged
+    private final ReorderBuffer reorder; // null unless the stream accepts late chunks
+    private final StatisticsCache statistics; // null if -Dtimecrypt.statistics.cache is 0
+    private final ArrayDeque<LoggedInsert> logged; // inserts in the log but not on disk yet, in log order
+
+    Stream(UUID id, StreamIndex index, Storage storage, WriteAheadLog wal) {
+        this.id = id;
+        this.index = index;
+        this.storage = storage;
+        this.lock = new StampedLock();
+        this.wal = wal;
+        long lateness = index.getMetadataConfig().getLateness();
+        this.reorder = lateness > 0 ? new ReorderBuffer(lateness) : null;
+        this.statistics = STATISTICS_CACHE_SIZE > 0 ? new StatisticsCache(STATISTICS_CACHE_SIZE) : null;
+        this.logged = new ArrayDeque<LoggedInsert>();
+    }
+
+    /**
+     * Appends the chunk to the index, false if it is not newer than the last chunk or, with a reorder buffer, arrives too late.
+     * Returns once the chunk is as durable as the write-ahead log policy requires.
+     */
+    boolean append(String key, Metadata md) throws IOException {
+        return appendBatch(Collections.singletonList(key), Collections.singletonList(md));
+    }
+
+    /**
+     * Appends the chunks to the index, false if they are not ordered or not newer than the last chunk.
+     * With a reorder buffer the chunks may come in any order within the lateness of the stream.
+     */
+    boolean appendBatch(List<String> keys, List<Metadata> mds) throws IOException {
+        long position;
+        long stamp = lock.writeLock();
+        try {
+            if (!accepts(mds)) {
+                return false;
+            }
+            if (wal == null) {
+                insert(keys, mds);
+                return true;
+            }
+            position = wal.append(id, keys, mds);
+            if (!wal.isSync()) {
+                insert(keys, mds);
+                return true;
+            }
+            logged.add(new LoggedInsert(keys, mds, position));
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+
+        // Waiting outside the lock lets the inserts of the stream share a single force of the log
+        try {
+            wal.awaitDurable(position);
+        } finally {
+            applyDurable();
+        }
+        return true;
+    }
+
+    /**
+     * Moves the logged inserts that are on disk into the index in log order.
+     * Once the log has failed the remaining inserts are dropped, their callers report the failure.
+     */
+    void applyDurable() {
+        long stamp = lock.writeLock();
+        try {
+            if (logged.isEmpty()) {
+                return;
+            }
+            long durable = wal.durablePosition();
+            while (!logged.isEmpty() && logged.peek().position <= durable) {
+                LoggedInsert insert = logged.poll();
+                insert(insert.keys, insert.mds);
+            }
+            if (wal.hasFailed()) {
+                logged.clear();
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Appends a chunk recovered from the write-ahead log, chunks already in the index are skipped
+     */
+    void replay(String key, Metadata md) {
+        long stamp = lock.writeLock();
+        try {
+            if (accepts(Collections.singletonList(md))) {
+                insert(Collections.singletonList(key), Collections.singletonList(md));
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Releases the chunks held back for late chunks, later chunks then have to be newer than all of them
+     */
+    void releaseAll() {
+        long stamp = lock.writeLock();
+        try {
+            if (reorder != null && !reorder.isEmpty()) {
+                List<String> keys = new ArrayList<String>();
+                List<Metadata> mds = new ArrayList<Metadata>();
+                reorder.releaseAll(keys, mds);
+                insertIntoIndex(keys, mds);
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Logs the chunks held back again, so that they outlive the segments of the write-ahead log that snapshots cover
+     */
+    void relogBuffered() throws IOException {
+        long stamp = lock.writeLock();
+        try {
+            if (reorder != null && wal != null && !reorder.isEmpty()) {
+                List<String> keys = new ArrayList<String>();
+                List<Metadata> mds = new ArrayList<Metadata>();
+                reorder.buffered(keys, mds);
+                wal.append(id, keys, mds);
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Checks the chunks against the index as it is once the logged inserts are applied as well
+     */
+    private boolean accepts(List<Metadata> mds) {
+        if (reorder == null) {
+            return index.dataIsNewer(mds) && (logged.isEmpty() || mds.get(0).from > logged.peekLast().lastFrom());
+        }
+
+        List<Metadata> loggedMetadata = new ArrayList<Metadata>();
+        for (LoggedInsert insert : logged) {
+            loggedMetadata.addAll(insert.mds);
+        }
+        long released = reorder.lastReleasedWith(loggedMetadata);
+        Set<Long> starts = new HashSet<Long>();
+        for (Metadata md : loggedMetadata) {
+            starts.add(md.from);
+        }
+        for (Metadata md : mds) {
+            if (!index.dataIsNewer(md) || md.from <= released || reorder.contains(md.from) || !starts.add(md.from)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void insert(List<String> keys, List<Metadata> mds) {
+        if (reorder != null) {
+            for (int i = 0; i < keys.size(); i++) {
+                reorder.add(keys.get(i), mds.get(i));
+            }
+            keys = new ArrayList<String>();
+            mds = new ArrayList<Metadata>();
+            reorder.release(keys, mds);
+            if (keys.isEmpty()) {
+                return;
+            }
+        }
+        insertIntoIndex(keys, mds);
+    }
+
+    private void insertIntoIndex(List<String> keys, List<Metadata> mds) {
+        if (keys.size() == 1) {
+            index.insert(keys.get(0), mds.get(0));
+        } else {
+            index.insertBatch(keys, mds);
+        }
+        if (statistics != null) {
+            long firstTo = Long.MAX_VALUE;
+            for (Metadata md : mds) {
+                firstTo = Math.min(firstTo, md.to);
+            }
+            statistics.invalidate(firstTo);
+        }
+        pruneIndex();
+    }
+
+    /**
+     * Drops the chunks past the retention of the stream, the restored index may still hold them
+     */
+    void prune() {
+        long stamp = lock.writeLock();
+        try {
+            pruneIndex();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    private void pruneIndex() {
+        List<String> dropped = index.prune();
+        if (!dropped.isEmpty()) {
+            if (statistics != null) {
+                statistics.clear(); // ranges over the dropped chunks now resolve to coarser nodes
+            }
+            String streamID = id.toString();
+            storageCleaner.execute(() -> {
+                for (String key : dropped) {
+                    storage.delete(streamID, key);
+                }
+            });
+        }
+    }
+
+    /**
+     * Runs the function on the index under the read lock, for callers that need the same state of the index over several calls
+     */
+    <T> T readLocked(Function<StreamIndex, T> function) {
+        long stamp = lock.readLock();
+        try {
+            return function.apply(index);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Returns the consolidated statistics of the range, null if it holds no chunks.
+     * Repeated ranges are answered from the statistics cache until a new chunk falls within them.
+     */
+    StatisticsCache.Entry statistics(long from, long to) {
+        long generation = 0L;
+        if (statistics != null) {
+            StatisticsCache.Entry cached = statistics.get(from, to);
+            if (cached != null) {
+                return cached;
+            }
+            generation = statistics.generation();
+        }
+
+        // Consolidation reads the live node metadata, so it has to see the same state of the index as the lookup
+        Metadata consolidated = read(index -> index.getStatistics(from, to));
+        if (consolidated == null) {
+            return null;
+        }
+
+        StatisticsCache.Entry entry = new StatisticsCache.Entry(consolidated);
+        if (statistics != null) {
+            statistics.put(from, to, entry, generation);
+        }
+        return entry;
+    }
+
+    /**
+     * Runs a query on the index, without locking if the index publishes immutable snapshots.
+     * The tree layouts update their nodes in place, so their queries hold the read lock rather than running optimistically.
+     */
+    <T> T read(Function<StreamIndex, T> query) {
+        if (index.hasLockFreeReads()) {
+            return query.apply(index);
+        }
+        return readLocked(query);
+    }
+
+    private static class LoggedInsert {
+        final List<String> keys;
+        final List<Metadata> mds;
+        final long position; // log position the insert is durable at
+
+        LoggedInsert(List<String> keys, List<Metadata> mds, long position) {
+            this.keys = keys;
+            this.mds = mds;
+            this.position = position;
+        }
+
+        long lastFrom() {
+            return mds.get(mds.size() - 1).from;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package timecrypt.server;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.function.Function;
+
+/**
+ * Streams of the server by identifier, safe to use from any thread.
+ * Streams persisted by a previous run are only loaded when they are first requested.
+ * The load runs outside of the map, so requests for other streams never wait for it.
+ */
+class StreamRegistry {
+    private final Map<UUID, Stream> streams = new ConcurrentHashMap<UUID, Stream>();
+    private final Set<UUID> persisted = ConcurrentHashMap.newKeySet(); // not loaded yet
+    private final Map<UUID, FutureTask<Stream>> loading = new ConcurrentHashMap<UUID, FutureTask<Stream>>();
+    private Function<UUID, Stream> loader;
+
+    /**
+     * Registers the stream, false if its identifier is already taken
+     */
+    boolean register(Stream stream) {
+        return !persisted.contains(stream.id) && streams.putIfAbsent(stream.id, stream) == null;
+    }
+
+    /**
+     * Makes persisted streams available, the loader returns null if a stream cannot be restored
+     */
+    void restore(Collection<UUID> ids, Function<UUID, Stream> loader) {
+        this.loader = loader;
+        persisted.addAll(ids);
+    }
+
+    Stream get(UUID id) {
+        if (id == null) {
+            return null;
+        }
+
+        Stream stream = streams.get(id);
+        if (stream == null && persisted.contains(id)) {
+            stream = load(id);
+        }
+        return stream;
+    }
+
+    /**
+     * Concurrent requests for the stream wait for a single load, a failed load is retried by the next request
+     */
+    private Stream load(UUID id) {
+        FutureTask<Stream> task = loading.computeIfAbsent(id, key -> new FutureTask<Stream>(() -> loader.apply(key)));
+        task.run(); // returns at once unless this request is the first
+        Stream stream;
+        try {
+            stream = task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            stream = null;
+        }
+
+        if (stream != null && persisted.contains(id)) { // not deleted meanwhile
+            streams.putIfAbsent(id, stream);
+            persisted.remove(id);
+        }
+        loading.remove(id, task);
+        return streams.get(id);
+    }
+
+    Collection<Stream> loaded() {
+        return streams.values();
+    }
+
+    void remove(UUID id) {
+        if (id != null) {
+            persisted.remove(id);
+            streams.remove(id);
+        }
+    }
+}
@@ -0,0 +1,366 @@
+package timecrypt.server;
+
+import com.n1analytics.paillier.PaillierPublicKey;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigInteger;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+import timecrypt.server.index.Metadata;
+import timecrypt.server.index.MetadataCodec;
+import timecrypt.server.index.MetadataConfiguration;
+import timecrypt.server.index.NodeLevels;
+import timecrypt.server.index.StreamIndex;
+
+/**
+ * Persists the streams so that a restarted server serves them again without the chunks being re-ingested.
+ * Every stream has a directory with its descriptor, written once on creation, a log of the nodes of its index and its right-most path.
+ * Nodes go into the log once they are final, chunks at once and inner nodes once the next node of their level exists.
+ * A snapshot appends the nodes that became final since the previous one and replaces the right-most path, the only nodes still changing.
+ * The index is loaded with the persisted aggregates, nothing is added up again.
+ * Records are length-prefixed, a record cut short by a crash is dropped on load together with the nodes logged after the last right-most path.
+ * Once the retention of the stream dropped chunks, the next snapshot rewrites the log without them, a pruned node stays as the aggregate of its chunks.
+ */
+class StreamSnapshots {
+    private static Logger LOGGER_API = Logger.getLogger("TimeCrypt API");
+    private static final String DESCRIPTOR = "stream";
+    private static final String NODES = "nodes";
+    private static final String SPINE = "spine";
+    private static final String SPINE_UPDATE = "spine.tmp";
+    private static final String NODES_REWRITE = "nodes.tmp";
+
+    final Path directory;
+    private final Map<UUID, Logged> logged; // per stream what its log holds
+
+    StreamSnapshots(Path directory) throws IOException {
+        this.directory = directory;
+        this.logged = new HashMap<UUID, Logged>();
+        Files.createDirectories(directory);
+    }
+
+    /**
+     * Returns the streams persisted by previous runs of the server
+     */
+    List<UUID> persistedStreams() throws IOException {
+        List<UUID> ids = new ArrayList<UUID>();
+        try (DirectoryStream<Path> dirs = Files.newDirectoryStream(directory)) {
+            for (Path dir : dirs) {
+                if (Files.exists(dir.resolve(DESCRIPTOR))) {
+                    try {
+                        ids.add(UUID.fromString(dir.getFileName().toString()));
+                    } catch (IllegalArgumentException e) {} // not a stream directory
+                }
+            }
+        }
+        return ids;
+    }
+
+    void writeDescriptor(UUID id, int k, String contract, PaillierPublicKey pubKey, String datalayer) throws IOException {
+        Path dir = directory.resolve(id.toString());
+        Files.createDirectories(dir);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(k);
+        out.writeUTF(contract);
+        byte[] modulus = pubKey == null ? new byte[0] : pubKey.getModulus().toByteArray();
+        out.writeInt(modulus.length);
+        out.write(modulus);
+        out.writeUTF(datalayer);
+        Files.write(dir.resolve(DESCRIPTOR), bytes.toByteArray());
+    }
+
+    Descriptor readDescriptor(UUID id) throws IOException {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(Files.readAllBytes(directory.resolve(id.toString()).resolve(DESCRIPTOR))))) {
+            int k = in.readInt();
+            String contract = in.readUTF();
+            byte[] modulus = new byte[in.readInt()];
+            in.readFully(modulus);
+            String datalayer = in.readUTF();
+            return new Descriptor(k, contract, modulus.length == 0 ? null : new PaillierPublicKey(new BigInteger(modulus)), datalayer);
+        }
+    }
+
+    /**
+     * Logs the nodes of the stream that became final since the last snapshot and replaces its right-most path, false if that failed.
+     * If the retention dropped chunks since, the log is first rewritten with the nodes still in the index.
+     */
+    synchronized boolean snapshot(Stream stream) {
+        Logged previous = logged.getOrDefault(stream.id, new Logged(new int[0], 0));
+        Changes changes = stream.readLocked(index -> changes(index, previous));
+        if (changes == null) {
+            return true;
+        }
+
+        Path dir = directory.resolve(stream.id.toString());
+        Path log = dir.resolve(NODES);
+        long logSize = 0L;
+        try {
+            logSize = Files.exists(log) ? Files.size(log) : 0L;
+            if (changes.rewrite != null) {
+                // Only holds what the current right-most path covers, so the log stays consistent with it until it is replaced
+                Files.write(dir.resolve(NODES_REWRITE), encode(changes.rewrite));
+                Files.move(dir.resolve(NODES_REWRITE), log, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                logged.put(stream.id, new Logged(previous.next, changes.dropped));
+                logSize = Files.size(log);
+            }
+
+            Files.write(log, encode(changes.records), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            Files.write(dir.resolve(SPINE_UPDATE), changes.spine);
+            Files.move(dir.resolve(SPINE_UPDATE), dir.resolve(SPINE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            logged.put(stream.id, new Logged(changes.next, changes.dropped));
+            return true;
+        } catch (IOException e) {
+            truncate(log, logSize); // the nodes are logged again with the next snapshot, the log must not hold them twice
+            LOGGER_API.warning("Snapshot of stream " + stream.id + " failed: " + e.getMessage());
+            return false;
+        }
+    }
+
+    private static byte[] encode(List<NodeRecord> records) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        DataOutputStream recordOut = new DataOutputStream(record);
+        for (NodeRecord node : records) {
+            record.reset();
+            recordOut.writeByte(node.level);
+            recordOut.writeInt(node.position);
+            if (node.level == 0) {
+                recordOut.writeUTF(node.key);
+            }
+            MetadataCodec.encodeStored(node.metadata, recordOut);
+            if (node.prefix != null) {
+                MetadataCodec.encodeStored(node.prefix, recordOut);
+            }
+            out.writeInt(record.size());
+            record.writeTo(out);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Collects the nodes to log and encodes the right-most path, null if the index did not change since the last snapshot.
+     * Runs under the read lock of the stream, final nodes are only encoded after it as they no longer change.
+     */
+    private static Changes changes(StreamIndex index, Logged previous) {
+        int levels = index.getLevels();
+        int[] counts = new int[levels];
+        int[] next = new int[levels];
+        int dropped = levels == 0 ? 0 : index.getNodeCount(0) - index.getLeavesCount();
+        boolean changed = previous.next.length != levels || previous.dropped != dropped;
+        for (int l = 0; l < levels; l++) {
+            counts[l] = index.getNodeCount(l);
+            next[l] = l == 0 ? counts[l] : counts[l] - 1;
+            changed |= l >= previous.next.length || previous.next[l] != next[l];
+        }
+        if (!changed) {
+            return null;
+        }
+
+        List<NodeRecord> rewrite = null;
+        if (previous.dropped != dropped) {
+            rewrite = new ArrayList<NodeRecord>();
+            for (int l = 0; l < Math.min(levels, previous.next.length); l++) {
+                collect(index, l, 0, previous.next[l], rewrite);
+            }
+        }
+        List<NodeRecord> records = new ArrayList<NodeRecord>();
+        for (int l = 0; l < levels; l++) {
+            collect(index, l, l < previous.next.length ? previous.next[l] : 0, next[l], records);
+        }
+
+        ByteArrayOutputStream spine = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(spine);
+        try {
+            out.writeInt(levels);
+            for (int l = 0; l < levels; l++) {
+                out.writeInt(counts[l]);
+            }
+            for (int l = 1; l < levels; l++) {
+                MetadataCodec.encodeStored(index.getNodeMetadata(l, counts[l] - 1), out);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // not thrown by a byte array stream
+        }
+        return new Changes(rewrite, records, spine.toByteArray(), next, dropped);
+    }
+
+    /**
+     * Adds the nodes of the level between the positions that the retention did not drop
+     */
+    private static void collect(StreamIndex index, int level, int from, int to, List<NodeRecord> records) {
+        for (int position = from; position < to; position++) {
+            Metadata md = index.getNodeMetadata(level, position);
+            if (md != null) {
+                records.add(new NodeRecord(level, position, level == 0 ? index.getChunkKey(position) : null, md, level == 0 ? index.getPrefixAggregates(position) : null));
+            }
+        }
+    }
+
+    /**
+     * Loads the persisted nodes of the stream into its empty index from the memory-mapped log.
+     * The log is cut at the first record that is incomplete or was logged after the last right-most path.
+     */
+    void load(UUID id, StreamIndex index) throws IOException {
+        Path dir = directory.resolve(id.toString());
+        Path log = dir.resolve(NODES);
+        if (!Files.exists(dir.resolve(SPINE))) { // no snapshot of the stream completed
+            truncate(log, 0L);
+            return;
+        }
+
+        MetadataConfiguration config = index.getMetadataConfig();
+        DataInputStream spine = new DataInputStream(new ByteArrayInputStream(Files.readAllBytes(dir.resolve(SPINE))));
+        int[] counts = new int[spine.readInt()];
+        int[] next = new int[counts.length];
+        for (int l = 0; l < counts.length; l++) {
+            counts[l] = spine.readInt();
+            next[l] = l == 0 ? counts[l] : counts[l] - 1;
+        }
+        NodeLevels levels = new NodeLevels(counts);
+
+        try {
+            long valid = 0L;
+            if (Files.exists(log)) {
+                try (FileChannel channel = FileChannel.open(log, StandardOpenOption.READ)) {
+                    MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0L, channel.size());
+                    while (buffer.remaining() >= 4) {
+                        int length = buffer.getInt();
+                        if (length < 0 || length > buffer.remaining()) {
+                            break;
+                        }
+                        byte[] record = new byte[length];
+                        buffer.get(record);
+
+                        DataInputStream recordIn = new DataInputStream(new ByteArrayInputStream(record));
+                        int level = recordIn.readUnsignedByte();
+                        int position = recordIn.readInt();
+                        if (level >= counts.length || position >= next[level]) {
+                            break;
+                        }
+                        if (level == 0) {
+                            String key = recordIn.readUTF();
+                            Metadata md = MetadataCodec.decode(recordIn, config);
+                            levels.addChunk(position, key, md, recordIn.available() > 0 ? MetadataCodec.decode(recordIn, config) : null);
+                        } else {
+                            levels.add(level, position, MetadataCodec.decode(recordIn, config));
+                        }
+                        valid = buffer.position();
+                    }
+                }
+            }
+            truncate(log, valid);
+
+            for (int l = 1; l < counts.length; l++) {
+                levels.add(l, counts[l] - 1, MetadataCodec.decode(spine, config));
+            }
+            index.load(levels);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("The snapshot of stream " + id + " is inconsistent: " + e.getMessage());
+        }
+        synchronized (this) {
+            logged.put(id, new Logged(next, index.getNodeCount(0) - index.getLeavesCount()));
+        }
+    }
+
+    private static void truncate(Path file, long size) {
+        try {
+            if (Files.exists(file) && Files.size(file) > size) {
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                    channel.truncate(size);
+                }
+            }
+        } catch (IOException e) {
+            LOGGER_API.warning("Snapshot log " + file + " could not be truncated: " + e.getMessage());
+        }
+    }
+
+    synchronized void delete(UUID id) {
+        logged.remove(id);
+        Path dir = directory.resolve(id.toString());
+        try {
+            Files.deleteIfExists(dir.resolve(NODES));
+            Files.deleteIfExists(dir.resolve(SPINE));
+            Files.deleteIfExists(dir.resolve(SPINE_UPDATE));
+            Files.deleteIfExists(dir.resolve(NODES_REWRITE));
+            Files.deleteIfExists(dir.resolve(DESCRIPTOR));
+            Files.deleteIfExists(dir);
+        } catch (IOException e) {
+            LOGGER_API.warning("Snapshot of stream " + id + " could not be deleted: " + e.getMessage());
+        }
+    }
+
+    static class Descriptor {
+        final int k;
+        final String contract;
+        final PaillierPublicKey pubKey;
+        final String datalayer;
+
+        Descriptor(int k, String contract, PaillierPublicKey pubKey, String datalayer) {
+            this.k = k;
+            this.contract = contract;
+            this.pubKey = pubKey;
+            this.datalayer = datalayer;
+        }
+    }
+
+    private static class NodeRecord {
+        final int level;
+        final int position;
+        final String key; // only for chunks
+        final Metadata metadata;
+        final Metadata prefix; // running sum and count up to a chunk, null without prefix aggregates
+
+        NodeRecord(int level, int position, String key, Metadata metadata, Metadata prefix) {
+            this.level = level;
+            this.position = position;
+            this.key = key;
+            this.metadata = metadata;
+            this.prefix = prefix;
+        }
+    }
+
+    private static class Changes {
+        final List<NodeRecord> rewrite; // nodes covered by the current right-most path still in the index, null if the log is kept
+        final List<NodeRecord> records;
+        final byte[] spine;
+        final int[] next;
+        final int dropped;
+
+        Changes(List<NodeRecord> rewrite, List<NodeRecord> records, byte[] spine, int[] next, int dropped) {
+            this.rewrite = rewrite;
+            this.records = records;
+            this.spine = spine;
+            this.next = next;
+            this.dropped = dropped;
+        }
+    }
+
+    private static class Logged {
+        final int[] next; // position of the next node to log on every level
+        final int dropped; // chunks dropped by the retention when the log was last written
+
+        Logged(int[] next, int dropped) {
+            this.next = next;
+            this.dropped = dropped;
+        }
+    }
+}
@@ -0,0 +1,285 @@
+package timecrypt.server;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import timecrypt.server.index.Metadata;
+import timecrypt.server.index.MetadataCodec;
+
+/**
+ * Append-only log of the accepted inserts, so that chunks inserted after the last snapshot survive a crash.
+ * Records are written before the index changes and a single flusher thread forces them to disk,
+ * every force covering all records written meanwhile (group commit).
+ * With the sync policy inserts are acknowledged once their records are on disk, with the async policy the flusher trails the inserts.
+ * The log is split into segments, a segment is deleted once snapshots cover all of its records.
+ * Record layout: body length (4 bytes), CRC32 of the body (4 bytes), body of stream ID (16 bytes), key and {@link MetadataCodec} encoding.
+ */
+class WriteAheadLog {
+    private static Logger LOGGER_API = Logger.getLogger("TimeCrypt API");
+    private static final String PREFIX = "wal-";
+    private static final String SUFFIX = ".log";
+    private static final int MAX_RECORD_SIZE = 1 << 24; // a larger length can only come from a torn write
+
+    enum Durability { SYNC, ASYNC }
+
+    interface Replayer {
+        void apply(UUID streamID, String key, byte[] metadata);
+    }
+
+    private final Path directory;
+    private final Durability durability;
+    private FileChannel channel;
+    private long segment; // sequence number of the segment written to
+    private long written; // bytes written over all segments, used as log position
+    private long synced; // log position forced to disk
+    private IOException failure;
+    private boolean closed;
+
+    WriteAheadLog(Path directory, Durability durability) throws IOException {
+        this.directory = directory;
+        this.durability = durability;
+        List<Long> segments = segments();
+        this.segment = segments.isEmpty() ? 0L : segments.get(segments.size() - 1) + 1;
+        this.channel = open(segment);
+
+        Thread flusher = new Thread(this::flush, "timecrypt-wal");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Writes the records of the chunks and returns the log position to wait for
+     */
+    long append(UUID streamID, List<String> keys, List<Metadata> metadata) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream bodyOut = new DataOutputStream(body);
+        CRC32 crc = new CRC32();
+        for (int i = 0; i < keys.size(); i++) {
+            body.reset();
+            bodyOut.writeLong(streamID.getMostSignificantBits());
+            bodyOut.writeLong(streamID.getLeastSignificantBits());
+            bodyOut.writeUTF(keys.get(i));
+            MetadataCodec.encodeStored(metadata.get(i), bodyOut);
+
+            crc.reset();
+            crc.update(body.toByteArray());
+            out.writeInt(body.size());
+            out.writeInt((int) crc.getValue());
+            body.writeTo(out);
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+        synchronized (this) {
+            if (failure != null) {
+                throw failure;
+            }
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            written += buffer.capacity();
+            notifyAll();
+            return written;
+        }
+    }
+
+    /**
+     * Blocks until the log is on disk up to the position, returns at once with the async policy
+     */
+    void awaitDurable(long position) throws IOException {
+        if (durability == Durability.ASYNC) {
+            return;
+        }
+
+        synchronized (this) {
+            while (synced < position && failure == null) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for the write-ahead log.");
+                }
+            }
+            if (synced < position) {
+                throw failure;
+            }
+        }
+    }
+
+    boolean isSync() {
+        return durability == Durability.SYNC;
+    }
+
+    /**
+     * Returns the log position up to which the records are on disk
+     */
+    synchronized long durablePosition() {
+        return synced;
+    }
+
+    synchronized boolean hasFailed() {
+        return failure != null;
+    }
+
+    private void flush() {
+        while (true) {
+            long target;
+            FileChannel current;
+            synchronized (this) {
+                while (synced == written && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (synced == written) {
+                    return;
+                }
+                target = written;
+                current = channel;
+            }
+
+            try {
+                current.force(false);
+            } catch (IOException e) {
+                synchronized (this) {
+                    if (current == channel) { // the segment may have been forced and closed by a rotation meanwhile
+                        failure = e;
+                        LOGGER_API.severe("The write-ahead log cannot be forced to disk: " + e.getMessage());
+                        notifyAll();
+                        return;
+                    }
+                }
+            }
+
+            synchronized (this) {
+                if (target > synced) {
+                    synced = target;
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Continues the log in a new segment and returns its sequence number, the records of older segments are complete
+     */
+    synchronized long rotate() throws IOException {
+        channel.force(false);
+        channel.close();
+        synced = written;
+        notifyAll();
+
+        segment++;
+        channel = open(segment);
+        return segment;
+    }
+
+    /**
+     * Deletes the segments older than the given one, their records are covered by snapshots
+     */
+    void deleteBefore(long sequence) throws IOException {
+        for (long older : segments()) {
+            if (older < sequence) {
+                Files.deleteIfExists(path(older));
+            }
+        }
+    }
+
+    /**
+     * Passes the records of all segments but the current one to the replayer in the order they were written.
+     * A segment is read up to its first incomplete or corrupted record, which is where a crash interrupted it.
+     */
+    void replay(Replayer replayer) throws IOException {
+        for (long older : segments()) {
+            if (older >= segment) {
+                continue;
+            }
+
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path(older)), 1 << 16))) {
+                CRC32 crc = new CRC32();
+                while (true) {
+                    byte[] body;
+                    int checksum;
+                    try {
+                        int length = in.readInt();
+                        checksum = in.readInt();
+                        if (length < 0 || length > MAX_RECORD_SIZE) {
+                            break;
+                        }
+                        body = new byte[length];
+                        in.readFully(body);
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    crc.reset();
+                    crc.update(body);
+                    if ((int) crc.getValue() != checksum) {
+                        LOGGER_API.warning("Write-ahead log segment " + older + " ends with a corrupted record.");
+                        break;
+                    }
+
+                    DataInputStream bodyIn = new DataInputStream(new ByteArrayInputStream(body));
+                    UUID streamID = new UUID(bodyIn.readLong(), bodyIn.readLong());
+                    String key = bodyIn.readUTF();
+                    byte[] metadata = new byte[bodyIn.available()];
+                    bodyIn.readFully(metadata);
+                    replayer.apply(streamID, key, metadata);
+                }
+            }
+        }
+    }
+
+    synchronized void close() {
+        closed = true;
+        try {
+            channel.force(false);
+            channel.close();
+            synced = written;
+        } catch (IOException e) {
+            LOGGER_API.warning("The write-ahead log was not closed cleanly: " + e.getMessage());
+        }
+        notifyAll();
+    }
+
+    private FileChannel open(long sequence) throws IOException {
+        return FileChannel.open(path(sequence), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private Path path(long sequence) {
+        return directory.resolve(PREFIX + sequence + SUFFIX);
+    }
+
+    private List<Long> segments() throws IOException {
+        List<Long> segments = new ArrayList<Long>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    segments.add(Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length())));
+                } catch (NumberFormatException e) {} // not a segment
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+}
@@ -0,0 +1,352 @@
+package timecrypt.server.index;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+
+import timecrypt.server.index.crypto.HomomorphicEncryptedNumber;
+import timecrypt.server.index.crypto.OrderPreservingEncryptedNumber;
+import timecrypt.server.utils.Utility;
+
+/**
+ * Index storing the k-ary tree level by level in arrays, without an object per node.
+ * The children of node i are the nodes i*k .. i*k+k-1 of the level below and its parent is node i/k of the level above.
+ * Every statistic is a column holding the ciphertexts of all nodes of a level, level 0 holds the chunks.
+ * With off-heap aggregates, the metadata of a node moves to a {@link MetadataArena} once it can no longer change.
+ */
+public class ArrayTree extends StreamIndex {
+	private List<Level> levels; // the last level holds the root
+	private MetadataArena arena; // null if the aggregates stay on the heap
+
+	public ArrayTree(int k, MetadataConfiguration metaConfig) {
+		super(k, metaConfig);
+		if (metaConfig.hasOffHeapAggregates()) {
+			arena = new MetadataArena(metaConfig);
+		}
+		levels = new ArrayList<Level>();
+		levels.add(new Level(metaConfig, true, arena));
+	}
+
+	public void insert(String key, Metadata metadata) {
+		insertBatch(Collections.singletonList(key), Collections.singletonList(metadata));
+	}
+
+	public void insertBatch(List<String> keys, List<Metadata> metadata) {
+		Level leaves = levels.get(0);
+		int firstPosition = leaves.size;
+		for (int i = 0; i < keys.size(); i++) {
+			leaves.append(metadata.get(i), keys.get(i));
+			if (prefixAggregates != null) {
+				prefixAggregates.append(metadata.get(i));
+			}
+		}
+
+		// Move the merged metadata of the new chunks up one level at a time, the deltas belong to consecutive nodes
+		List<Metadata> deltas = metadata;
+		for (int l = 1; l < levels.size(); l++) {
+			List<Metadata> parentDeltas = new ArrayList<Metadata>();
+			int i = 0;
+			while (i < deltas.size()) {
+				int parent = (firstPosition + i) / k;
+				int end = Math.min(deltas.size(), (parent + 1) * k - firstPosition);
+				parentDeltas.add(end - i == 1 ? deltas.get(i) : Metadata.consolidate(metaConfig, deltas.subList(i, end)));
+				i = end;
+			}
+
+			// Nodes created by the batch only cover new chunks, so their delta is their whole metadata
+			firstPosition /= k;
+			Level level = levels.get(l);
+			for (int j = 0; j < parentDeltas.size(); j++) {
+				if (firstPosition + j < level.size) {
+					level.merge(firstPosition + j, parentDeltas.get(j));
+				} else {
+					level.append(parentDeltas.get(j), null);
+				}
+			}
+			deltas = parentDeltas;
+		}
+
+		// The tree has to grow until a single root covers all nodes
+		Level top = levels.get(levels.size() - 1);
+		while (top.size > 1) {
+			Level parent = new Level(metaConfig, false, arena);
+			for (int i = 0; i < top.size; i++) {
+				if (i % k == 0) {
+					parent.append(top.metadata(i), null);
+				} else {
+					parent.merge(i / k, top.metadata(i));
+				}
+			}
+			levels.add(parent);
+			top = parent;
+		}
+	}
+
+	public List<String> getRange(long from, long to) throws IllegalArgumentException {
+		if (to < from) {
+			throw new IllegalArgumentException();
+		}
+
+		// Chunks are ordered by time, so the matching ones are consecutive starting with the first one ending within the range
+		Level leaves = levels.get(0);
+		List<String> matchingStorageKeys = new ArrayList<String>();
+		for (int i = leaves.firstEndingAfter(from); i < leaves.size && leaves.from[i] <= to; i++) {
+			matchingStorageKeys.add(leaves.keys[i]);
+		}
+
+		return matchingStorageKeys;
+	}
+
+	public List<Metadata> getMetadata(long from, long to) throws IllegalArgumentException {
+		if (to < from) {
+			throw new IllegalArgumentException();
+		}
+
+		List<Metadata> gatheredStatistics = new ArrayList<Metadata>();
+		if (levels.get(0).size > 0) {
+			collect(levels.size() - 1, 0, from, to, gatheredStatistics);
+		}
+		return gatheredStatistics;
+	}
+
+	public List<List<Metadata>> getMetadataSeries(long from, long to, long step) throws IllegalArgumentException {
+		List<List<Metadata>> series = emptySeries(from, to, step);
+		if (levels.get(0).size > 0) {
+			collectSeries(levels.size() - 1, 0, from, to, step, series);
+		}
+		return series;
+	}
+
+	public boolean dataIsNewer(Metadata md) {
+		Level leaves = levels.get(0);
+		return md.from > (leaves.size == 0 ? 0L : leaves.from[leaves.size - 1]);
+	}
+
+	public int getLeavesCount() {
+		return levels.get(0).size;
+	}
+
+	public int getLevels() {
+		return levels.size();
+	}
+
+	public int getNodeCount(int level) {
+		return level < levels.size() ? levels.get(level).size : 0;
+	}
+
+	public Metadata getNodeMetadata(int level, int position) {
+		return level < levels.size() && position < levels.get(level).size ? levels.get(level).metadata(position) : null;
+	}
+
+	public String getChunkKey(int position) {
+		return position < levels.get(0).size ? levels.get(0).keys[position] : null;
+	}
+
+	/**
+	 * Appends the persisted nodes to their levels as they are, the array layout drops no chunks
+	 */
+	public void load(NodeLevels nodes) throws IllegalArgumentException {
+		List<Level> loaded = new ArrayList<Level>();
+		for (int l = 0; l < nodes.getLevels(); l++) {
+			Level level = new Level(metaConfig, l == 0, arena);
+			for (int position = 0; position < nodes.getCount(l); position++) {
+				Metadata md = nodes.get(l, position);
+				if (md == null) {
+					throw new IllegalArgumentException("Node " + position + " of level " + l + " is missing.");
+				}
+				level.append(md, l == 0 ? nodes.getKey(position) : null);
+			}
+			loaded.add(level);
+		}
+
+		this.levels = loaded;
+		loadPrefixAggregates(nodes);
+	}
+
+	/**
+	 * Gathers the nodes fully contained within the range in time order, exploring the children of partially covered nodes
+	 */
+	private void collect(int l, int position, long from, long to, List<Metadata> gatheredStatistics) {
+		Level level = levels.get(l);
+		if (level.from[position] > to || from > level.to[position]) {
+			return;
+		}
+		if (level.from[position] >= from && level.to[position] <= to) {
+			gatheredStatistics.add(level.metadata(position));
+			return;
+		}
+
+		if (l > 0) {
+			int end = Math.min(levels.get(l - 1).size, (position + 1) * k);
+			for (int child = position * k; child < end; child++) {
+				collect(l - 1, child, from, to, gatheredStatistics);
+			}
+		}
+	}
+
+	private void collectSeries(int l, int position, long from, long to, long step, List<List<Metadata>> series) {
+		Level level = levels.get(l);
+		if (level.from[position] > to || from > level.to[position]) {
+			return;
+		}
+
+		// If the node is fully contained within one window, then store its stats for that window
+		long window = window(level.from[position], from, step);
+		long windowFrom = from + window * step;
+		long windowTo = windowTo(windowFrom, to, step);
+		if (level.from[position] >= windowFrom && level.to[position] <= windowTo) {
+			series.get((int) window).add(level.metadata(position));
+			return;
+		}
+
+		if (l > 0) {
+			int end = Math.min(levels.get(l - 1).size, (position + 1) * k);
+			for (int child = position * k; child < end; child++) {
+				collectSeries(l - 1, child, from, to, step, series);
+			}
+		}
+	}
+
+	/**
+	 * Nodes of one tree level stored column-wise, only the columns of the configured statistics are allocated.
+	 * With an arena, the chunks are moved there at once and inner nodes as soon as the next node of their level is added,
+	 * only the last inner node of a level still receives merges.
+	 */
+	private static class Level {
+		private static final int INITIAL_CAPACITY = 16;
+
+		long[] from;
+		long[] to;
+		HomomorphicEncryptedNumber[] sum;
+		HomomorphicEncryptedNumber[] count;
+		OrderPreservingEncryptedNumber[] min;
+		OrderPreservingEncryptedNumber[] max;
+		BigInteger[] first;
+		BigInteger[] last;
+		BitSet[] tags;
+		String[] keys; // storage keys, only on the level of the chunks
+		int size;
+		MetadataArena arena;
+		long[] records; // arena addresses of the nodes before archived
+		int archived;
+
+		Level(MetadataConfiguration config, boolean chunks, MetadataArena arena) {
+			from = new long[INITIAL_CAPACITY];
+			to = new long[INITIAL_CAPACITY];
+			if (config.sum) sum = new HomomorphicEncryptedNumber[INITIAL_CAPACITY];
+			if (config.count) count = new HomomorphicEncryptedNumber[INITIAL_CAPACITY];
+			if (config.min) min = new OrderPreservingEncryptedNumber[INITIAL_CAPACITY];
+			if (config.max) max = new OrderPreservingEncryptedNumber[INITIAL_CAPACITY];
+			if (config.first) first = new BigInteger[INITIAL_CAPACITY];
+			if (config.last) last = new BigInteger[INITIAL_CAPACITY];
+			if (config.tags) tags = new BitSet[INITIAL_CAPACITY];
+			if (chunks) keys = new String[INITIAL_CAPACITY];
+			size = 0;
+			this.arena = arena;
+			if (arena != null) records = new long[INITIAL_CAPACITY];
+		}
+
+		/**
+		 * Adds a node holding the metadata, the tags of inner nodes are copied as later merges change them
+		 */
+		void append(Metadata md, String key) {
+			if (size == from.length) {
+				grow();
+			}
+
+			from[size] = md.from;
+			to[size] = md.to;
+			if (sum != null) sum[size] = md.sum;
+			if (count != null) count[size] = md.count;
+			if (min != null) min[size] = md.min;
+			if (max != null) max[size] = md.max;
+			if (first != null) first[size] = md.firstEntryValue;
+			if (last != null) last[size] = md.lastEntryValue;
+			if (tags != null) tags[size] = keys != null || md.tags == null ? md.tags : (BitSet) md.tags.clone();
+			if (keys != null) keys[size] = key;
+			size++;
+
+			if (arena != null) {
+				archive(keys != null ? size : size - 1);
+			}
+		}
+
+		/**
+		 * Merges newer metadata into the node, as {@link Metadata#updateMetadata} does for node objects
+		 */
+		void merge(int i, Metadata md) {
+			to[i] = md.to;
+			if (sum != null) sum[i] = sum[i] == null ? md.sum : sum[i].add(md.sum);
+			if (count != null) count[i] = count[i] == null ? md.count : count[i].add(md.count);
+			if (min != null) min[i] = min[i] == null ? md.min : min[i].min(md.min);
+			if (max != null) max[i] = max[i] == null ? md.max : max[i].max(md.max);
+			if (first != null && first[i] == null) first[i] = md.firstEntryValue;
+			if (last != null) last[i] = md.lastEntryValue;
+			if (tags != null) {
+				if (tags[i] == null) {
+					tags[i] = md.tags == null ? null : (BitSet) md.tags.clone();
+				} else {
+					Utility.mergeBitSet(md.tags, tags[i]);
+				}
+			}
+		}
+
+		Metadata metadata(int i) {
+			if (i < archived) {
+				return arena.get(records[i]);
+			}
+			return new Metadata(from[i], to[i],
+				sum == null ? null : sum[i], count == null ? null : count[i],
+				min == null ? null : min[i], max == null ? null : max[i],
+				first == null ? null : first[i], last == null ? null : last[i],
+				tags == null ? null : tags[i]);
+		}
+
+		/**
+		 * Returns the position of the first node ending at or after the time
+		 */
+		int firstEndingAfter(long time) {
+			int low = 0, high = size;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (to[mid] < time) low = mid + 1; else high = mid;
+			}
+			return low;
+		}
+
+		/**
+		 * Moves the nodes before the position into the arena, dropping their ciphertexts from the columns
+		 */
+		private void archive(int end) {
+			for (int i = archived; i < end; i++) {
+				records[i] = arena.put(metadata(i));
+				archived = i + 1; // the record is complete before readers use it
+				if (sum != null) sum[i] = null;
+				if (count != null) count[i] = null;
+				if (min != null) min[i] = null;
+				if (max != null) max[i] = null;
+				if (first != null) first[i] = null;
+				if (last != null) last[i] = null;
+				if (tags != null) tags[i] = null;
+			}
+		}
+
+		private void grow() {
+			int capacity = from.length * 2;
+			from = Arrays.copyOf(from, capacity);
+			to = Arrays.copyOf(to, capacity);
+			if (sum != null) sum = Arrays.copyOf(sum, capacity);
+			if (count != null) count = Arrays.copyOf(count, capacity);
+			if (min != null) min = Arrays.copyOf(min, capacity);
+			if (max != null) max = Arrays.copyOf(max, capacity);
+			if (first != null) first = Arrays.copyOf(first, capacity);
+			if (last != null) last = Arrays.copyOf(last, capacity);
+			if (tags != null) tags = Arrays.copyOf(tags, capacity);
+			if (keys != null) keys = Arrays.copyOf(keys, capacity);
+			if (records != null) records = Arrays.copyOf(records, capacity);
+		}
+	}
+}
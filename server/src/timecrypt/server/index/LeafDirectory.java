@@ -0,0 +1,81 @@
+package timecrypt.server.index;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Time ranges and storage keys of the leaves of the tree in insertion order.
+ * The leaves overlapping a range are consecutive, so they are found with two binary searches instead of a tree walk.
+ */
+class LeafDirectory {
+    private long[] from;
+    private long[] to;
+    private String[] keys;
+    private int size;
+
+    LeafDirectory() {
+        this.from = new long[16];
+        this.to = new long[16];
+        this.keys = new String[16];
+        this.size = 0;
+    }
+
+    void append(long leafFrom, long leafTo, String key) {
+        if (size == from.length) {
+            int capacity = size * 2;
+            from = Arrays.copyOf(from, capacity);
+            to = Arrays.copyOf(to, capacity);
+            keys = Arrays.copyOf(keys, capacity);
+        }
+
+        from[size] = leafFrom;
+        to[size] = leafTo;
+        keys[size] = key;
+        size++;
+    }
+
+    /**
+     * Returns the storage keys of the leaves overlapping the range in time order
+     */
+    List<String> keys(long rangeFrom, long rangeTo) {
+        // First leaf ending at or after the range start
+        int low = 0, high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (to[mid] < rangeFrom) low = mid + 1; else high = mid;
+        }
+        int first = low;
+
+        // First leaf starting after the range end
+        high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (from[mid] <= rangeTo) low = mid + 1; else high = mid;
+        }
+
+        return new ArrayList<String>(Arrays.asList(keys).subList(first, low));
+    }
+
+    /**
+     * Removes the oldest leaves
+     */
+    void dropFirst(int count) {
+        size -= count;
+        System.arraycopy(from, count, from, 0, size);
+        System.arraycopy(to, count, to, 0, size);
+        System.arraycopy(keys, count, keys, 0, size);
+        Arrays.fill(keys, size, size + count, null);
+    }
+
+    /**
+     * Returns the start of the last leaf, 0 if there are no leaves as node metadata treats a zero start as unset
+     */
+    long lastFrom() {
+        return size == 0 ? 0L : from[size-1];
+    }
+
+    int size() {
+        return size;
+    }
+}
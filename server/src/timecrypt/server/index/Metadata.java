@@ -1,16 +1,31 @@
 package timecrypt.server.index;
 
+import ch.ethz.dsg.ecelgamal.ECElGamal.ECElGamalCiphertext;
+import ch.ethz.dsg.ore.ORE.ORECiphertext;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
 import timecrypt.server.index.crypto.HomomorphicEncryptedNumber;
 import timecrypt.server.index.crypto.OrderPreservingEncryptedNumber;
+import timecrypt.server.index.enums.HomomorphicAlgorithm;
+import timecrypt.server.index.enums.OrderPreservingAlgorithm;
 import timecrypt.server.utils.Utility;
 
 import java.math.BigInteger;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Base64;
 import java.util.BitSet;
-import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 public class Metadata implements Comparable<Metadata> {
+    private static JsonParser jsonParser = new JsonParser();
+    private static final int PARALLEL_THRESHOLD = 32; // nodes folded by one task, forking fewer costs more than the ciphertext operations
+
     public long from;
     public long to;
 
@@ -49,6 +64,59 @@ public class Metadata implements Comparable<Metadata> {
         this.tags = tags;
     }
 
+    /**
+     * Parses chunk metadata sent by the client, ciphertexts are decoded with the algorithms of the stream
+     */
+    public static Metadata fromJson(String json, MetadataConfiguration config) {
+        JsonObject jobject = jsonParser.parse(json).getAsJsonObject();
+        long from = jobject.get("from").getAsLong();
+        long to = jobject.get("to").getAsLong();
+
+        HomomorphicEncryptedNumber sum = null, count = null;
+        OrderPreservingEncryptedNumber min = null, max = null;
+        BigInteger first = null, last = null;
+        BitSet tags = null;
+        JsonElement jSum = jobject.get("sum");
+        JsonElement jCount = jobject.get("count");
+        JsonElement jMin = jobject.get("min");
+        JsonElement jMax = jobject.get("max");
+        JsonElement jFirst = jobject.get("first");
+        JsonElement jLast = jobject.get("last");
+        JsonElement jTags = jobject.get("tags");
+
+        if (jSum != null && config.sum) sum = homomorphicFromJson(jSum, config.getSumAlgorithm(), config);
+        if (jCount != null && config.count) count = homomorphicFromJson(jCount, config.getCountAlgorithm(), config);
+        if (jMin != null && config.min) min = orderPreservingFromJson(jMin, config.getMinAlgorithm());
+        if (jMax != null && config.max) max = orderPreservingFromJson(jMax, config.getMaxAlgorithm());
+        if (jFirst != null && config.first) first = jFirst.getAsBigInteger();
+        if (jLast != null && config.last) last = jLast.getAsBigInteger();
+        if (jTags != null && config.tags) tags = Utility.unmarshalBitSet(jTags.getAsJsonArray());
+
+        return new Metadata(from, to, sum, count, min, max, first, last, tags);
+    }
+
+    private static HomomorphicEncryptedNumber homomorphicFromJson(JsonElement value, HomomorphicAlgorithm algorithm, MetadataConfiguration config) {
+        try {
+            return config.paillierNumber(value.getAsBigInteger());
+        } catch (NumberFormatException e) { // ecelgamal case
+            if (algorithm == HomomorphicAlgorithm.ECELGAMAL) {
+                return new HomomorphicEncryptedNumber(ECElGamalCiphertext.decode(Base64.getDecoder().decode(value.getAsString())));
+            }
+            throw e;
+        }
+    }
+
+    private static OrderPreservingEncryptedNumber orderPreservingFromJson(JsonElement value, OrderPreservingAlgorithm algorithm) {
+        try {
+            return new OrderPreservingEncryptedNumber(value.getAsBigInteger());
+        } catch (NumberFormatException e) {
+            if (algorithm == OrderPreservingAlgorithm.ORE) {
+                return new OrderPreservingEncryptedNumber(ORECiphertext.decodeDefault(Base64.getDecoder().decode(value.getAsString())));
+            }
+            throw e;
+        }
+    }
+
     public boolean matchesConfig(MetadataConfiguration config) {
         if ((config.count && count == null) 
             || (config.max && max == null)
@@ -78,7 +146,7 @@ public class Metadata implements Comparable<Metadata> {
         }
         if (config.tags) {
             if (updateTo.tags == null) {
-                updateTo.tags = updateFrom.tags;
+                updateTo.tags = updateFrom.tags == null ? null : (BitSet) updateFrom.tags.clone(); // merges must not change the tags of the child
             } else {
                 Utility.mergeBitSet(updateFrom.tags, updateTo.tags); // merge bitsets
             }
@@ -98,33 +166,100 @@ public class Metadata implements Comparable<Metadata> {
     }
 
     public static Metadata consolidate(MetadataConfiguration config, List<Metadata> metadata) {
+        return consolidate(config, metadata, config.sum, config.count);
+    }
+
+    /**
+     * Consolidates the metadata given in time order, as the index returns it.
+     * Sum and count are left out when they are computed otherwise.
+     * Long lists are split in halves that are folded in parallel on the common fork-join pool.
+     */
+    public static Metadata consolidate(MetadataConfiguration config, List<Metadata> metadata, boolean withSum, boolean withCount) {
+        Metadata consolidated = metadata.size() < PARALLEL_THRESHOLD
+            ? fold(config, metadata, 0, metadata.size(), withSum, withCount)
+            : ForkJoinPool.commonPool().invoke(new Fold(config, metadata, 0, metadata.size(), withSum, withCount));
+
+        if (config.first) consolidated.firstEntryValue = metadata.get(0).firstEntryValue;
+        if (config.last) consolidated.lastEntryValue = metadata.get(metadata.size()-1).lastEntryValue;
+        return consolidated;
+    }
+
+    /**
+     * Folds the metadata at positions lo..hi-1 without the first and last entry values
+     */
+    private static Metadata fold(MetadataConfiguration config, List<Metadata> metadata, int lo, int hi, boolean withSum, boolean withCount) {
         long from = Long.MAX_VALUE, to = Long.MIN_VALUE;
-        HomomorphicEncryptedNumber sum = null, count = null;
+        List<HomomorphicEncryptedNumber> sums = withSum ? new ArrayList<HomomorphicEncryptedNumber>(hi - lo) : null;
+        List<HomomorphicEncryptedNumber> counts = withCount ? new ArrayList<HomomorphicEncryptedNumber>(hi - lo) : null;
         OrderPreservingEncryptedNumber min = null, max = null;
-        BigInteger first = null, last = null;
-        BitSet bs = new BitSet();
+        BitSet bs = config.tags ? new BitSet() : null;
 
-        for (Metadata md : metadata) {
+        for (Metadata md : metadata.subList(lo, hi)) {
             if (md.from < from) from = md.from;
             if (md.to > to) to = md.to;
 
-            if (config.sum) sum = sum == null ? md.sum : sum.add(md.sum);
-            if (config.count) count = count == null ? md.count : count.add(md.count);
+            if (withSum && md.sum != null) sums.add(md.sum);
+            if (withCount && md.count != null) counts.add(md.count);
             if (config.min) min = min == null ? md.min : md.min.min(min);
             if (config.max) max = max == null ? md.max : md.max.max(max);
             if (config.tags) Utility.mergeBitSet(md.tags, bs);
         }
-        boolean sorted = false;
-        if (config.first) {
-            Collections.sort(metadata);
-            first = metadata.get(0).firstEntryValue;
+
+        HomomorphicEncryptedNumber sum = withSum && !sums.isEmpty() ? HomomorphicEncryptedNumber.sum(sums) : null;
+        HomomorphicEncryptedNumber count = withCount && !counts.isEmpty() ? HomomorphicEncryptedNumber.sum(counts) : null;
+        return new Metadata(from, to, sum, count, min, max, null, null, bs);
+    }
+
+    /**
+     * Ciphertext additions and comparisons are associative, so halves of the list can be folded independently and combined
+     */
+    private static class Fold extends RecursiveTask<Metadata> {
+        private static final long serialVersionUID = 1L;
+
+        private final MetadataConfiguration config;
+        private final List<Metadata> metadata;
+        private final int lo;
+        private final int hi;
+        private final boolean withSum;
+        private final boolean withCount;
+
+        Fold(MetadataConfiguration config, List<Metadata> metadata, int lo, int hi, boolean withSum, boolean withCount) {
+            this.config = config;
+            this.metadata = metadata;
+            this.lo = lo;
+            this.hi = hi;
+            this.withSum = withSum;
+            this.withCount = withCount;
         }
-        if (config.last) {
-            if (!sorted) Collections.sort(metadata);
-            last = metadata.get(metadata.size()-1).lastEntryValue;
+
+        @Override
+        protected Metadata compute() {
+            if (hi - lo < PARALLEL_THRESHOLD) {
+                return fold(config, metadata, lo, hi, withSum, withCount);
+            }
+
+            int mid = (lo + hi) >>> 1;
+            Fold left = new Fold(config, metadata, lo, mid, withSum, withCount);
+            left.fork();
+            Metadata right = new Fold(config, metadata, mid, hi, withSum, withCount).compute();
+            Metadata folded = left.join();
+
+            folded.from = Math.min(folded.from, right.from);
+            folded.to = Math.max(folded.to, right.to);
+            if (withSum) folded.sum = add(folded.sum, right.sum);
+            if (withCount) folded.count = add(folded.count, right.count);
+            if (config.min) folded.min = right.min.min(folded.min);
+            if (config.max) folded.max = right.max.max(folded.max);
+            if (config.tags) Utility.mergeBitSet(right.tags, folded.tags);
+            return folded;
         }
 
-        return new Metadata(from, to, sum, count, min, max, first, last, bs);
+        /**
+         * Halves that only hold nodes without the aggregate have none
+         */
+        private static HomomorphicEncryptedNumber add(HomomorphicEncryptedNumber a, HomomorphicEncryptedNumber b) {
+            return a == null ? b : b == null ? a : a.add(b);
+        }
     }
 
     public String toJson(MetadataConfiguration config) {
@@ -0,0 +1,72 @@
+package timecrypt.server.index;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Append-only store of node metadata in direct memory, outside of the heap managed by the garbage collector.
+ * Records are length-prefixed {@link MetadataCodec} encodings addressed by page (upper 32 bits) and offset (lower 32 bits),
+ * the ciphertext objects are only created again when a query needs the record.
+ */
+class MetadataArena {
+    private static final int PAGE_SIZE = 1 << 20;
+
+    private final MetadataConfiguration config;
+    private final ByteArrayOutputStream record;
+    private final DataOutputStream recordOut;
+    private ByteBuffer[] pages;
+    private int pageCount;
+
+    MetadataArena(MetadataConfiguration config) {
+        this.config = config;
+        this.record = new ByteArrayOutputStream();
+        this.recordOut = new DataOutputStream(record);
+        this.pages = new ByteBuffer[16];
+        this.pageCount = 0;
+    }
+
+    /**
+     * Encodes the metadata into the arena and returns the address of the record
+     */
+    long put(Metadata md) {
+        record.reset();
+        try {
+            MetadataCodec.encodeStored(md, recordOut);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // not thrown by a byte array stream
+        }
+
+        int length = 4 + record.size();
+        ByteBuffer page = pageCount == 0 ? null : pages[pageCount - 1];
+        if (page == null || page.remaining() < length) {
+            page = ByteBuffer.allocateDirect(Math.max(PAGE_SIZE, length));
+            if (pageCount == pages.length) {
+                pages = Arrays.copyOf(pages, pageCount * 2);
+            }
+            pages[pageCount++] = page;
+        }
+
+        long address = ((long) (pageCount - 1) << 32) | page.position();
+        page.putInt(record.size());
+        page.put(record.toByteArray());
+        return address;
+    }
+
+    Metadata get(long address) {
+        ByteBuffer page = pages[(int) (address >>> 32)].duplicate(); // readers do not move the position of the writer
+        page.position((int) address);
+        byte[] bytes = new byte[page.getInt()];
+        page.get(bytes);
+        try {
+            return MetadataCodec.decode(new DataInputStream(new ByteArrayInputStream(bytes)), config);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
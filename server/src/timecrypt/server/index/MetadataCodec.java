@@ -0,0 +1,142 @@
+package timecrypt.server.index;
+
+import ch.ethz.dsg.ecelgamal.ECElGamal.ECElGamalCiphertext;
+import ch.ethz.dsg.ore.ORE.ORECiphertext;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.BitSet;
+
+import timecrypt.server.index.crypto.HomomorphicEncryptedNumber;
+import timecrypt.server.index.crypto.OrderPreservingEncryptedNumber;
+import timecrypt.server.index.enums.HomomorphicAlgorithm;
+import timecrypt.server.index.enums.OrderPreservingAlgorithm;
+
+/**
+ * Compact binary encoding of metadata carrying raw ciphertext bytes.
+ * Layout: from (8 bytes), to (8 bytes), field mask (1 byte), opaque mask (1 byte), followed by
+ * a length-prefixed value for every field present in the mask (sum, count, min, max, first, last)
+ * and, if present, the number of tag words with the words themselves.
+ * A field is opaque when its bytes are an EC-ElGamal or ORE encoding rather than an integer.
+ * Responses carry obfuscated Paillier ciphertexts, the server stores them without obfuscation as they never leave it.
+ */
+public class MetadataCodec {
+    public static final int SUM = 1;
+    public static final int COUNT = 1 << 1;
+    public static final int MIN = 1 << 2;
+    public static final int MAX = 1 << 3;
+    public static final int FIRST = 1 << 4;
+    public static final int LAST = 1 << 5;
+    public static final int TAGS = 1 << 6;
+
+    public static void encode(Metadata md, DataOutput out) throws IOException {
+        encode(md, out, false);
+    }
+
+    /**
+     * Encodes metadata for the write-ahead log, snapshots and the off-heap arena, saving the obfuscation of the ciphertexts
+     */
+    public static void encodeStored(Metadata md, DataOutput out) throws IOException {
+        encode(md, out, true);
+    }
+
+    private static void encode(Metadata md, DataOutput out, boolean stored) throws IOException {
+        int fields = 0, opaque = 0;
+        if (md.sum != null) fields |= SUM;
+        if (md.count != null) fields |= COUNT;
+        if (md.min != null) fields |= MIN;
+        if (md.max != null) fields |= MAX;
+        if (md.firstEntryValue != null) fields |= FIRST;
+        if (md.lastEntryValue != null) fields |= LAST;
+        if (md.tags != null) fields |= TAGS;
+        if (md.sum != null && !md.sum.isPaillierEncrypted()) opaque |= SUM;
+        if (md.count != null && !md.count.isPaillierEncrypted()) opaque |= COUNT;
+        if (md.min != null && !md.min.isOPEEncrypted()) opaque |= MIN;
+        if (md.max != null && !md.max.isOPEEncrypted()) opaque |= MAX;
+
+        out.writeLong(md.from);
+        out.writeLong(md.to);
+        out.writeByte(fields);
+        out.writeByte(opaque);
+        if (md.sum != null) writeBytes(out, stored ? md.sum.toStoredBytes() : md.sum.toBytes());
+        if (md.count != null) writeBytes(out, stored ? md.count.toStoredBytes() : md.count.toBytes());
+        if (md.min != null) writeBytes(out, md.min.toBytes());
+        if (md.max != null) writeBytes(out, md.max.toBytes());
+        if (md.firstEntryValue != null) writeBytes(out, md.firstEntryValue.toByteArray());
+        if (md.lastEntryValue != null) writeBytes(out, md.lastEntryValue.toByteArray());
+        if (md.tags != null) {
+            long[] words = md.tags.toLongArray();
+            out.writeInt(words.length);
+            for (long word : words) {
+                out.writeLong(word);
+            }
+        }
+    }
+
+    /**
+     * Decodes metadata, ciphertexts are interpreted with the algorithms configured for the stream
+     */
+    public static Metadata decode(DataInput in, MetadataConfiguration config) throws IOException {
+        long from = in.readLong();
+        long to = in.readLong();
+        int fields = in.readUnsignedByte();
+        in.readUnsignedByte(); // opaque mask, the stream configuration is authoritative on the server
+
+        HomomorphicEncryptedNumber sum = null, count = null;
+        OrderPreservingEncryptedNumber min = null, max = null;
+        BigInteger first = null, last = null;
+        BitSet tags = null;
+
+        if ((fields & SUM) != 0) sum = decodeHomomorphic(readBytes(in), config.getSumAlgorithm(), config);
+        if ((fields & COUNT) != 0) count = decodeHomomorphic(readBytes(in), config.getCountAlgorithm(), config);
+        if ((fields & MIN) != 0) min = decodeOrderPreserving(readBytes(in), config.getMinAlgorithm());
+        if ((fields & MAX) != 0) max = decodeOrderPreserving(readBytes(in), config.getMaxAlgorithm());
+        if ((fields & FIRST) != 0) first = new BigInteger(readBytes(in));
+        if ((fields & LAST) != 0) last = new BigInteger(readBytes(in));
+        if ((fields & TAGS) != 0) {
+            long[] words = new long[in.readInt()];
+            for (int i = 0; i < words.length; i++) {
+                words[i] = in.readLong();
+            }
+            tags = BitSet.valueOf(words);
+        }
+
+        // Drop the fields that are not part of the stream configuration, as the JSON parser does
+        return new Metadata(from, to,
+            config.sum ? sum : null, config.count ? count : null,
+            config.min ? min : null, config.max ? max : null,
+            config.first ? first : null, config.last ? last : null,
+            config.tags ? tags : null);
+    }
+
+    public static HomomorphicEncryptedNumber decodeHomomorphic(byte[] bytes, HomomorphicAlgorithm algorithm, MetadataConfiguration config) {
+        if (algorithm == HomomorphicAlgorithm.ECELGAMAL) {
+            return new HomomorphicEncryptedNumber(ECElGamalCiphertext.decode(bytes));
+        }
+        return config.paillierNumber(new BigInteger(bytes));
+    }
+
+    public static OrderPreservingEncryptedNumber decodeOrderPreserving(byte[] bytes, OrderPreservingAlgorithm algorithm) {
+        if (algorithm == OrderPreservingAlgorithm.ORE) {
+            return new OrderPreservingEncryptedNumber(ORECiphertext.decodeDefault(bytes));
+        }
+        return new OrderPreservingEncryptedNumber(new BigInteger(bytes));
+    }
+
+    private static void writeBytes(DataOutput out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            throw new IOException("Negative field length.");
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
@@ -1,9 +1,15 @@
 package timecrypt.server.index;
 
+import com.n1analytics.paillier.EncryptedNumber;
 import com.n1analytics.paillier.PaillierContext;
 import com.n1analytics.paillier.PaillierPublicKey;
 
+import java.math.BigInteger;
+
+import timecrypt.server.index.crypto.HomomorphicEncryptedNumber;
+import timecrypt.server.index.crypto.PaillierEngine;
 import timecrypt.server.index.enums.HomomorphicAlgorithm;
+import timecrypt.server.index.enums.IndexLayout;
 import timecrypt.server.index.enums.OrderPreservingAlgorithm;
 
 public class MetadataConfiguration {
@@ -15,10 +21,14 @@ public class MetadataConfiguration {
     public final boolean last;
     public final boolean tags;
     public final CryptoAlgorithmsConfiguration algorithms;
+    public final IndexConfiguration index;
+
+    public static final int PAILLIER_EXPONENT = 2048;
 
     private PaillierContext paillierContext;
+    private PaillierEngine paillierEngine;
 
-    public MetadataConfiguration(boolean count, boolean sum, boolean min, boolean max, boolean first, boolean last, boolean tags, CryptoAlgorithmsConfiguration algorithms) {
+    public MetadataConfiguration(boolean count, boolean sum, boolean min, boolean max, boolean first, boolean last, boolean tags, CryptoAlgorithmsConfiguration algorithms, IndexConfiguration index) {
         this.count = count;
         this.sum = sum;
         this.min = min;
@@ -27,11 +37,13 @@ public class MetadataConfiguration {
         this.last = last;
         this.tags = tags;
         this.algorithms = algorithms;
+        this.index = index;
     }
 
     public void setPaillierPublicKey(PaillierPublicKey publicKey) {
         if (publicKey != null) {
             this.paillierContext = publicKey.createSignedContext();
+            this.paillierEngine = new PaillierEngine(paillierContext, PAILLIER_EXPONENT);
         }
     }
 
@@ -39,6 +51,95 @@ public class MetadataConfiguration {
         return this.paillierContext;
     }
 
+    /**
+     * Wraps a Paillier ciphertext of the stream in the Montgomery form used for aggregation
+     */
+    public HomomorphicEncryptedNumber paillierNumber(BigInteger ciphertext) {
+        if (paillierEngine == null) { // no public key, the number is only stored
+            return new HomomorphicEncryptedNumber(new EncryptedNumber(paillierContext, ciphertext, PAILLIER_EXPONENT));
+        }
+        return new HomomorphicEncryptedNumber(paillierEngine, paillierEngine.toMontgomery(ciphertext));
+    }
+
+    /**
+     * Paillier and OPE are used when the contract does not specify the algorithms
+     */
+    public HomomorphicAlgorithm getSumAlgorithm() {
+        return algorithms == null || algorithms.sum == null ? HomomorphicAlgorithm.PAILLIER : algorithms.sum;
+    }
+
+    public HomomorphicAlgorithm getCountAlgorithm() {
+        return algorithms == null || algorithms.count == null ? HomomorphicAlgorithm.PAILLIER : algorithms.count;
+    }
+
+    public OrderPreservingAlgorithm getMinAlgorithm() {
+        return algorithms == null || algorithms.min == null ? OrderPreservingAlgorithm.OPE : algorithms.min;
+    }
+
+    public OrderPreservingAlgorithm getMaxAlgorithm() {
+        return algorithms == null || algorithms.max == null ? OrderPreservingAlgorithm.OPE : algorithms.max;
+    }
+
+    /**
+     * Nodes are linked objects unless the contract asks for the array layout
+     */
+    public IndexLayout getIndexLayout() {
+        return index == null || index.layout == null ? IndexLayout.POINTER : index.layout;
+    }
+
+    /**
+     * Prefix aggregates can only be subtracted for Paillier, EC-ElGamal sums and counts are always taken from the tree
+     */
+    public boolean hasPrefixSum() {
+        return sum && index != null && index.prefix && getSumAlgorithm() == HomomorphicAlgorithm.PAILLIER;
+    }
+
+    public boolean hasPrefixCount() {
+        return count && index != null && index.prefix && getCountAlgorithm() == HomomorphicAlgorithm.PAILLIER;
+    }
+
+    /**
+     * Only the pointer layout defers the roll-up, queries then combine the children of the nodes that are not full yet
+     */
+    public boolean hasDeferredRollup() {
+        return index != null && index.deferred && getIndexLayout() == IndexLayout.POINTER;
+    }
+
+    /**
+     * Only the array layout moves aggregates off the heap, the other layouts keep an object per node anyway
+     */
+    public boolean hasOffHeapAggregates() {
+        return index != null && index.offheap && getIndexLayout() == IndexLayout.ARRAY;
+    }
+
+    /**
+     * Chunks are indexed once the newest chunk starts the lateness after them, 0 requires chunks to arrive in order
+     */
+    public long getLateness() {
+        return index == null ? 0L : Math.max(0L, index.lateness);
+    }
+
+    /**
+     * Only the pointer layout drops old chunks, prefix aggregates are kept per chunk and would disagree with the pruned tree
+     */
+    public long getRetention() {
+        if (index == null || index.retention <= 0 || getIndexLayout() != IndexLayout.POINTER || hasPrefixSum() || hasPrefixCount()) {
+            return 0L;
+        }
+        return index.retention;
+    }
+
+    public int getRetentionLevel() {
+        return index == null ? 1 : Math.max(1, index.retentionLevel);
+    }
+
+    /**
+     * Snapshots only hold the tree, so the snapshot layout cannot keep prefix aggregates next to it
+     */
+    public boolean isSupported() {
+        return getIndexLayout() != IndexLayout.SNAPSHOT || !(hasPrefixSum() || hasPrefixCount());
+    }
+
     public class CryptoAlgorithmsConfiguration {
         public final HomomorphicAlgorithm sum;
         public final HomomorphicAlgorithm count;
@@ -52,4 +153,24 @@ public class MetadataConfiguration {
             this.count = count;
         }
     }
+
+    public class IndexConfiguration {
+        public final IndexLayout layout;
+        public final boolean prefix; // maintain prefix aggregates of sum and count next to the tree
+        public final boolean deferred; // aggregate interior nodes once they are full instead of on every insert
+        public final long lateness; // how much earlier than the newest chunk a chunk may start and still be accepted
+        public final long retention; // how much earlier than the newest chunk a chunk may end and still be kept, 0 keeps all chunks
+        public final int retentionLevel; // finest tree level kept for chunks past the retention, 1 only drops the chunks
+        public final boolean offheap; // keep the final node aggregates in direct memory instead of ciphertext objects
+
+        public IndexConfiguration(IndexLayout layout, boolean prefix, boolean deferred, long lateness, long retention, int retentionLevel, boolean offheap) {
+            this.layout = layout;
+            this.prefix = prefix;
+            this.deferred = deferred;
+            this.lateness = lateness;
+            this.retention = retention;
+            this.retentionLevel = retentionLevel;
+            this.offheap = offheap;
+        }
+    }
 }
\ No newline at end of file
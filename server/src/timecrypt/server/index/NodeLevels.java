@@ -0,0 +1,99 @@
+package timecrypt.server.index;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Metadata of the nodes of an index level by level, as persisted by snapshots, level 0 holding the chunks.
+ * Every layout builds the same k-ary tree from the left, so the children of node i are the nodes i*k .. i*k+k-1 of the level below.
+ * Nodes dropped by the retention of the stream are missing, the metadata of the others is final and loaded as it is.
+ */
+public class NodeLevels {
+    private final int[] counts;
+    private final int[] first;
+    private final List<List<Metadata>> nodes;
+    private final List<String> keys; // storage keys of the chunks
+    private final List<Metadata> prefixes; // running sums and counts up to the chunks, null without prefix aggregates
+
+    /**
+     * Creates the levels of a tree holding the given amount of nodes per level, including dropped ones
+     */
+    public NodeLevels(int[] counts) {
+        this.counts = counts.clone();
+        this.first = counts.clone(); // a level without nodes starts after its last position
+        this.nodes = new ArrayList<List<Metadata>>(counts.length);
+        for (int l = 0; l < counts.length; l++) {
+            nodes.add(new ArrayList<Metadata>());
+        }
+        this.keys = new ArrayList<String>();
+        this.prefixes = new ArrayList<Metadata>();
+    }
+
+    /**
+     * Adds a node, the nodes of a level are added in the order of their positions
+     */
+    public void add(int level, int position, Metadata md) throws IllegalArgumentException {
+        add(level, position, md, null, null);
+    }
+
+    public void addChunk(int position, String key, Metadata md, Metadata prefix) throws IllegalArgumentException {
+        add(0, position, md, key, prefix);
+    }
+
+    private void add(int level, int position, Metadata md, String key, Metadata prefix) throws IllegalArgumentException {
+        List<Metadata> levelNodes = nodes.get(level);
+        if (levelNodes.isEmpty()) {
+            first[level] = Math.min(first[level], position);
+        }
+        if (position < first[level] + levelNodes.size() || position >= counts[level]) {
+            throw new IllegalArgumentException("Node " + position + " of level " + level + " is out of order.");
+        }
+
+        while (first[level] + levelNodes.size() < position) { // dropped nodes
+            levelNodes.add(null);
+            if (level == 0) {
+                keys.add(null);
+                prefixes.add(null);
+            }
+        }
+        levelNodes.add(md);
+        if (level == 0) {
+            keys.add(key);
+            prefixes.add(prefix);
+        }
+    }
+
+    public int getLevels() {
+        return counts.length;
+    }
+
+    public int getCount(int level) {
+        return counts[level];
+    }
+
+    /**
+     * Returns the position of the first node of the level, the nodes before it were dropped
+     */
+    public int getFirst(int level) {
+        return first[level];
+    }
+
+    /**
+     * Returns the metadata of the node, null if it was dropped
+     */
+    public Metadata get(int level, int position) {
+        int i = position - first[level];
+        List<Metadata> levelNodes = nodes.get(level);
+        return i < 0 || i >= levelNodes.size() ? null : levelNodes.get(i);
+    }
+
+    public String getKey(int position) {
+        int i = position - first[0];
+        return i < 0 || i >= keys.size() ? null : keys.get(i);
+    }
+
+    public Metadata getPrefix(int position) {
+        int i = position - first[0];
+        return i < 0 || i >= prefixes.size() ? null : prefixes.get(i);
+    }
+}
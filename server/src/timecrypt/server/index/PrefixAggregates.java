@@ -0,0 +1,110 @@
+package timecrypt.server.index;
+
+import java.util.Arrays;
+
+import timecrypt.server.index.crypto.HomomorphicEncryptedNumber;
+
+/**
+ * Running sums and counts over the leaves of the tree in insertion order.
+ * The sum or count of the leaves i..j is prefix(j) - prefix(i-1), two ciphertext operations regardless of the range size.
+ */
+class PrefixAggregates {
+    private long[] from;
+    private long[] to;
+    private HomomorphicEncryptedNumber[] sums;
+    private HomomorphicEncryptedNumber[] counts;
+    private int size;
+
+    PrefixAggregates(boolean sum, boolean count) {
+        this.from = new long[16];
+        this.to = new long[16];
+        this.sums = sum ? new HomomorphicEncryptedNumber[16] : null;
+        this.counts = count ? new HomomorphicEncryptedNumber[16] : null;
+        this.size = 0;
+    }
+
+    void append(Metadata leaf) {
+        if (size == from.length) {
+            grow();
+        }
+
+        from[size] = leaf.from;
+        to[size] = leaf.to;
+        if (sums != null) sums[size] = size == 0 ? leaf.sum : sums[size-1].add(leaf.sum);
+        if (counts != null) counts[size] = size == 0 ? leaf.count : counts[size-1].add(leaf.count);
+        size++;
+    }
+
+    /**
+     * Appends a leaf whose running sum and count were persisted, so nothing is added up again
+     */
+    void load(Metadata leaf, Metadata prefix) throws IllegalArgumentException {
+        if (leaf == null || prefix == null) {
+            throw new IllegalArgumentException("The prefix aggregates of a chunk are missing.");
+        }
+        if (size == from.length) {
+            grow();
+        }
+
+        from[size] = leaf.from;
+        to[size] = leaf.to;
+        if (sums != null) sums[size] = prefix.sum;
+        if (counts != null) counts[size] = prefix.count;
+        size++;
+    }
+
+    /**
+     * Returns the running sum and count up to the leaf
+     */
+    Metadata get(int leaf) {
+        return new Metadata(from[leaf], to[leaf], sums == null ? null : sums[leaf], counts == null ? null : counts[leaf], null, null, null, null, null);
+    }
+
+    /**
+     * Returns the position of the first leaf starting at or after the time
+     */
+    int firstLeaf(long time) {
+        int low = 0, high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (from[mid] < time) low = mid + 1; else high = mid;
+        }
+        return low;
+    }
+
+    /**
+     * Returns the position of the last leaf ending at or before the time, -1 if there is none
+     */
+    int lastLeaf(long time) {
+        int low = 0, high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (to[mid] <= time) low = mid + 1; else high = mid;
+        }
+        return low - 1;
+    }
+
+    long from(int leaf) {
+        return from[leaf];
+    }
+
+    long to(int leaf) {
+        return to[leaf];
+    }
+
+    HomomorphicEncryptedNumber sum(int firstLeaf, int lastLeaf) {
+        return firstLeaf == 0 ? sums[lastLeaf] : sums[lastLeaf].subtract(sums[firstLeaf-1]);
+    }
+
+    HomomorphicEncryptedNumber count(int firstLeaf, int lastLeaf) {
+        return firstLeaf == 0 ? counts[lastLeaf] : counts[lastLeaf].subtract(counts[firstLeaf-1]);
+    }
+
+    private void grow() {
+        int capacity = from.length * 2;
+        from = Arrays.copyOf(from, capacity);
+        to = Arrays.copyOf(to, capacity);
+        if (sums != null) sums = Arrays.copyOf(sums, capacity);
+        if (counts != null) counts = Arrays.copyOf(counts, capacity);
+    }
+}
@@ -0,0 +1,311 @@
+package timecrypt.server.index;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Index whose nodes are never changed once published, so queries need no locking while chunks are appended.
+ * An insert copies the right-most path of the tree, the only nodes an append changes, and publishes the new root at once.
+ * Every query runs on the snapshot that was published when it started.
+ */
+public class SnapshotTree extends StreamIndex {
+	private volatile Snapshot snapshot;
+
+	public SnapshotTree(int k, MetadataConfiguration metaConfig) {
+		super(k, metaConfig);
+		snapshot = new Snapshot(new Node(new Metadata(), new Node[0], null, 1), 0, 0L);
+	}
+
+	public void insert(String key, Metadata metadata) {
+		snapshot = append(snapshot, key, metadata);
+	}
+
+	/**
+	 * The whole batch is published as one snapshot, queries see either none or all of its chunks
+	 */
+	public void insertBatch(List<String> keys, List<Metadata> metadata) {
+		Snapshot next = snapshot;
+		for (int i = 0; i < keys.size(); i++) {
+			next = append(next, keys.get(i), metadata.get(i));
+		}
+		snapshot = next;
+	}
+
+	private Snapshot append(Snapshot current, String key, Metadata metadata) {
+		Node leaf = new Node(metadata, null, key, 0);
+		Node root = append(current.root, leaf);
+		if (root == null) {
+			// The tree is full, so it grows in one level up
+			Node branch = branch(current.root.height, leaf);
+			root = new Node(merge(merge(new Metadata(), current.root.metadata), metadata), new Node[] { current.root, branch }, null, current.root.height + 1);
+		}
+
+		return new Snapshot(root, current.leavesCount + 1, metadata.from);
+	}
+
+	/**
+	 * Returns a copy of the node with the leaf appended to its right-most path, null if the subtree is full
+	 */
+	private Node append(Node node, Node leaf) {
+		Node[] children = node.children;
+		if (node.height > 1 && children.length > 0) {
+			Node last = append(children[children.length - 1], leaf);
+			if (last != null) {
+				Node[] copy = Arrays.copyOf(children, children.length);
+				copy[copy.length - 1] = last;
+				return new Node(merge(node.metadata, leaf.metadata), copy, null, node.height);
+			}
+		}
+		if (children.length == k) {
+			return null;
+		}
+
+		Node[] copy = Arrays.copyOf(children, children.length + 1);
+		copy[children.length] = branch(node.height - 1, leaf);
+		return new Node(merge(node.metadata, leaf.metadata), copy, null, node.height);
+	}
+
+	/**
+	 * Builds the path of single-child nodes from the given height down to the leaf
+	 */
+	private Node branch(int height, Node leaf) {
+		Node node = leaf;
+		for (int h = 1; h <= height; h++) {
+			node = new Node(merge(new Metadata(), leaf.metadata), new Node[] { node }, null, h);
+		}
+		return node;
+	}
+
+	/**
+	 * Returns a copy of the node metadata updated with the newer metadata, published metadata is never changed
+	 */
+	private Metadata merge(Metadata node, Metadata update) {
+		Metadata copy = new Metadata(node.from, node.to, node.sum, node.count, node.min, node.max,
+			node.firstEntryValue, node.lastEntryValue, node.tags == null ? null : (BitSet) node.tags.clone());
+		Metadata.updateMetadata(metaConfig, update, copy);
+		return copy;
+	}
+
+	public List<String> getRange(long from, long to) throws IllegalArgumentException {
+		if (to < from) {
+			throw new IllegalArgumentException();
+		}
+
+		List<String> matchingStorageKeys = new ArrayList<String>();
+		Snapshot current = snapshot;
+		if (current.leavesCount > 0 && inRange(current.root, from, to)) {
+			collectKeys(current.root, from, to, matchingStorageKeys);
+		}
+		return matchingStorageKeys;
+	}
+
+	public List<Metadata> getMetadata(long from, long to) throws IllegalArgumentException {
+		if (to < from) {
+			throw new IllegalArgumentException();
+		}
+
+		List<Metadata> gatheredStatistics = new ArrayList<Metadata>();
+		Snapshot current = snapshot;
+		if (current.leavesCount > 0 && inRange(current.root, from, to)) {
+			collect(current.root, from, to, gatheredStatistics);
+		}
+		return gatheredStatistics;
+	}
+
+	public List<List<Metadata>> getMetadataSeries(long from, long to, long step) throws IllegalArgumentException {
+		List<List<Metadata>> series = emptySeries(from, to, step);
+		Snapshot current = snapshot;
+		if (current.leavesCount > 0 && inRange(current.root, from, to)) {
+			collectSeries(current.root, from, to, step, series);
+		}
+		return series;
+	}
+
+	public boolean dataIsNewer(Metadata md) {
+		return md.from > snapshot.lastFrom;
+	}
+
+	public int getLeavesCount() {
+		return snapshot.leavesCount;
+	}
+
+	public int getLevels() {
+		return snapshot.root.height + 1;
+	}
+
+	/**
+	 * Every level but the last is full, so the count follows from the children of the nodes on the right-most path
+	 */
+	public int getNodeCount(int level) {
+		Node node = snapshot.root;
+		if (level > node.height) {
+			return 0;
+		}
+
+		int count = 1; // the root
+		while (node.height > level) {
+			count = (count - 1) * k + node.children.length;
+			if (node.children.length == 0) {
+				break; // root of the empty tree
+			}
+			node = node.children[node.children.length - 1];
+		}
+		return count;
+	}
+
+	public Metadata getNodeMetadata(int level, int position) {
+		Node node = node(level, position);
+		return node == null ? null : node.metadata;
+	}
+
+	public String getChunkKey(int position) {
+		Node node = node(0, position);
+		return node == null ? null : node.key;
+	}
+
+	/**
+	 * Builds the nodes bottom-up from the persisted metadata and publishes the tree as one snapshot
+	 */
+	public void load(NodeLevels levels) throws IllegalArgumentException {
+		int height = levels.getLevels() - 1;
+		if (height < 1 || levels.getCount(height) != 1) {
+			throw new IllegalArgumentException("The persisted tree has no root.");
+		}
+
+		Node[] lower = new Node[0];
+		for (int l = 0; l <= height; l++) {
+			Node[] current = new Node[levels.getCount(l)];
+			for (int position = 0; position < current.length; position++) {
+				Metadata md = levels.get(l, position);
+				if (md == null) {
+					throw new IllegalArgumentException("Node " + position + " of level " + l + " is missing.");
+				}
+				Node[] children = l == 0 ? null : Arrays.copyOfRange(lower, Math.min(lower.length, position * k), Math.min(lower.length, (position + 1) * k));
+				current[position] = new Node(md, children, l == 0 ? levels.getKey(position) : null, l);
+			}
+			lower = current;
+		}
+
+		int leavesCount = levels.getCount(0);
+		snapshot = new Snapshot(lower[0], leavesCount, leavesCount == 0 ? 0L : levels.get(0, leavesCount - 1).from);
+	}
+
+	/**
+	 * Descends from the root of the current snapshot to the node at the position of the level
+	 */
+	private Node node(int level, int position) {
+		Node node = snapshot.root;
+		if (level > node.height || position < 0 || position >= getNodeCount(level)) {
+			return null;
+		}
+
+		int[] ancestors = new int[node.height - level + 1]; // positions of the node and its ancestors, the root last
+		ancestors[0] = position;
+		for (int i = 1; i < ancestors.length; i++) {
+			ancestors[i] = ancestors[i - 1] / k;
+		}
+		for (int i = ancestors.length - 2; i >= 0; i--) {
+			node = node.children[ancestors[i] - ancestors[i + 1] * k];
+		}
+		return node;
+	}
+
+	@Override
+	public boolean hasLockFreeReads() {
+		return true;
+	}
+
+	private void collectKeys(Node current, long from, long to, List<String> matchingStorageKeys) {
+		if (current.key != null) {
+			matchingStorageKeys.add(current.key);
+			return;
+		}
+
+		Node[] children = current.children;
+		for (int i = firstChildEndingAfter(children, from); i < children.length && children[i].metadata.from <= to; i++) {
+			collectKeys(children[i], from, to, matchingStorageKeys);
+		}
+	}
+
+	private void collect(Node current, long from, long to, List<Metadata> gatheredStatistics) {
+		if (current.metadata.from >= from && current.metadata.to <= to) {
+			gatheredStatistics.add(current.metadata);
+			return;
+		}
+		if (current.key != null) {
+			return;
+		}
+
+		Node[] children = current.children;
+		for (int i = firstChildEndingAfter(children, from); i < children.length && children[i].metadata.from <= to; i++) {
+			collect(children[i], from, to, gatheredStatistics);
+		}
+	}
+
+	private void collectSeries(Node current, long from, long to, long step, List<List<Metadata>> series) {
+		// If current node is fully contained within one window, then store its stats for that window
+		long window = window(current.metadata.from, from, step);
+		long windowFrom = from + window * step;
+		long windowTo = windowTo(windowFrom, to, step);
+		if (current.metadata.from >= windowFrom && current.metadata.to <= windowTo) {
+			series.get((int) window).add(current.metadata);
+			return;
+		}
+		if (current.key != null) {
+			return;
+		}
+
+		Node[] children = current.children;
+		for (int i = firstChildEndingAfter(children, from); i < children.length && children[i].metadata.from <= to; i++) {
+			collectSeries(children[i], from, to, step, series);
+		}
+	}
+
+	private int firstChildEndingAfter(Node[] children, long time) {
+		int low = 0, high = children.length;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (children[mid].metadata.to < time) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	private boolean inRange(Node current, long from, long to) {
+		return current.metadata.from <= to && from <= current.metadata.to;
+	}
+
+	/**
+	 * Immutable tree node, leaves have a storage key and no children
+	 */
+	private static final class Node {
+		final Metadata metadata;
+		final Node[] children;
+		final String key;
+		final int height; // 0 for leaves
+
+		Node(Metadata metadata, Node[] children, String key, int height) {
+			this.metadata = metadata;
+			this.children = children;
+			this.key = key;
+			this.height = height;
+		}
+	}
+
+	private static final class Snapshot {
+		final Node root;
+		final int leavesCount;
+		final long lastFrom; // start of the last chunk, 0 while there are none as node metadata treats a zero start as unset
+
+		Snapshot(Node root, int leavesCount, long lastFrom) {
+			this.root = root;
+			this.leavesCount = leavesCount;
+			this.lastFrom = lastFrom;
+		}
+	}
+}
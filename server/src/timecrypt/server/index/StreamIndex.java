@@ -0,0 +1,213 @@
+package timecrypt.server.index;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import timecrypt.server.index.enums.IndexLayout;
+
+/**
+ * Append-only index of the chunks of a stream, aggregating their metadata in a k-ary tree.
+ * Implementations differ in the memory layout of the tree, selected by the stream configuration.
+ */
+public abstract class StreamIndex {
+	protected int k; // maximum amount of children per node
+	protected MetadataConfiguration metaConfig;
+	protected PrefixAggregates prefixAggregates; // only maintained when the stream configuration asks for it
+
+	protected StreamIndex(int k, MetadataConfiguration metaConfig) {
+		this.k = k;
+		this.metaConfig = metaConfig;
+		if (metaConfig.hasPrefixSum() || metaConfig.hasPrefixCount()) {
+			prefixAggregates = new PrefixAggregates(metaConfig.hasPrefixSum(), metaConfig.hasPrefixCount());
+		}
+	}
+
+	public static StreamIndex create(int k, MetadataConfiguration metaConfig) throws IllegalArgumentException {
+		if (!metaConfig.isSupported()) {
+			throw new IllegalArgumentException("The snapshot layout does not support prefix aggregates.");
+		}
+		if (metaConfig.getIndexLayout() == IndexLayout.ARRAY) {
+			return new ArrayTree(k, metaConfig);
+		}
+		if (metaConfig.getIndexLayout() == IndexLayout.SNAPSHOT) {
+			return new SnapshotTree(k, metaConfig);
+		}
+		return new Tree(k, metaConfig);
+	}
+
+	public MetadataConfiguration getMetadataConfig() {
+		return this.metaConfig;
+	}
+
+	/**
+	 * Inserts chunk into the leaf node, constructing k-ary tree in a bottom-up way
+	 */
+	public abstract void insert(String key, Metadata metadata);
+
+	/**
+	 * Inserts chunks in the order given, rolling up the metadata of the whole batch in one pass up the tree
+	 */
+	public abstract void insertBatch(List<String> keys, List<Metadata> metadata);
+
+	/**
+	 * Returns the storage keys of the chunks overlapping the range
+	 */
+	public abstract List<String> getRange(long from, long to) throws IllegalArgumentException;
+
+	/**
+	 * Returns the metadata of the largest nodes fully contained within the range
+	 */
+	public abstract List<Metadata> getMetadata(long from, long to) throws IllegalArgumentException;
+
+	/**
+	 * Collects the statistics of consecutive windows of the given step in a single walk of the tree.
+	 * As in {@link #getMetadata(long, long)}, chunks overlapping a window boundary are not part of any window.
+	 */
+	public abstract List<List<Metadata>> getMetadataSeries(long from, long to, long step) throws IllegalArgumentException;
+
+	/**
+	 * Creates the empty windows of a series, ranges whose length does not fit into a long are rejected
+	 */
+	protected static List<List<Metadata>> emptySeries(long from, long to, long step) throws IllegalArgumentException {
+		if (to < from || step <= 0 || to - from < 0 || (to - from) / step >= Integer.MAX_VALUE) {
+			throw new IllegalArgumentException();
+		}
+
+		int windows = (int) ((to - from) / step + 1);
+		List<List<Metadata>> series = new ArrayList<List<Metadata>>(windows);
+		for (int i = 0; i < windows; i++) {
+			series.add(new ArrayList<Metadata>());
+		}
+		return series;
+	}
+
+	/**
+	 * Window of a series containing the start of a node that does not start after the end of the series
+	 */
+	protected static long window(long nodeFrom, long from, long step) {
+		return nodeFrom <= from ? 0L : (nodeFrom - from) / step;
+	}
+
+	/**
+	 * End of the window starting at windowFrom, the last window ends with the series
+	 */
+	protected static long windowTo(long windowFrom, long to, long step) {
+		return to - windowFrom < step ? to : windowFrom + step - 1;
+	}
+
+	/**
+	 * Checks that data to be inserted is newer then the last inserted chunk.
+	 * Ensures that index is append-only.
+	 */
+	public abstract boolean dataIsNewer(Metadata md);
+
+	public abstract int getLeavesCount();
+
+	/**
+	 * Returns the number of levels of the tree, level 0 holding the chunks
+	 */
+	public abstract int getLevels();
+
+	/**
+	 * Returns the number of nodes appended to the level, including the ones dropped by the retention.
+	 * Only the last node of a level changes with later inserts.
+	 */
+	public abstract int getNodeCount(int level);
+
+	/**
+	 * Returns the metadata of the node at the position of the level, null if the retention dropped it
+	 */
+	public abstract Metadata getNodeMetadata(int level, int position);
+
+	/**
+	 * Returns the storage key of the chunk at the position, null if the retention dropped it
+	 */
+	public abstract String getChunkKey(int position);
+
+	/**
+	 * Returns the running sum and count up to the chunk at the position, null without prefix aggregates
+	 */
+	public Metadata getPrefixAggregates(int position) {
+		return prefixAggregates == null ? null : prefixAggregates.get(position);
+	}
+
+	/**
+	 * Builds the empty index from persisted nodes, their aggregates are taken as they are
+	 */
+	public abstract void load(NodeLevels levels) throws IllegalArgumentException;
+
+	protected void loadPrefixAggregates(NodeLevels levels) {
+		if (prefixAggregates == null) {
+			return;
+		}
+		for (int position = 0; position < levels.getCount(0); position++) {
+			prefixAggregates.load(levels.get(0, position), levels.getPrefix(position));
+		}
+	}
+
+	/**
+	 * Drops the chunks past the retention of the stream, keeping the aggregates of their ancestors.
+	 * Returns the storage keys of the dropped chunks.
+	 */
+	public List<String> prune() {
+		return Collections.emptyList();
+	}
+
+	/**
+	 * Whether queries can run concurrently with an insert without any locking
+	 */
+	public boolean hasLockFreeReads() {
+		return false;
+	}
+
+	/**
+	 * Checks that the batch is newer than the last inserted chunk and ordered by time itself
+	 */
+	public boolean dataIsNewer(List<Metadata> batch) {
+		if (batch.isEmpty() || !dataIsNewer(batch.get(0))) {
+			return false;
+		}
+		for (int i = 1; i < batch.size(); i++) {
+			if (batch.get(i).from <= batch.get(i-1).from) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Consolidates the statistics of the chunks within the range, null if there are none.
+	 * With prefix aggregates, sum and count take two ciphertext operations and the tree is only walked for the other statistics.
+	 */
+	public Metadata getStatistics(long from, long to) throws IllegalArgumentException {
+		if (prefixAggregates == null) {
+			List<Metadata> metadata = getMetadata(from, to);
+			return metadata.size() == 0 ? null : Metadata.consolidate(metaConfig, metadata);
+		}
+		if (to < from) {
+			throw new IllegalArgumentException();
+		}
+
+		// Chunks are appended in time order, so the chunks within the range are consecutive leaves
+		int firstLeaf = prefixAggregates.firstLeaf(from);
+		int lastLeaf = prefixAggregates.lastLeaf(to);
+		if (firstLeaf > lastLeaf) {
+			return null;
+		}
+
+		boolean treeSum = metaConfig.sum && !metaConfig.hasPrefixSum();
+		boolean treeCount = metaConfig.count && !metaConfig.hasPrefixCount();
+		Metadata consolidated;
+		if (treeSum || treeCount || metaConfig.min || metaConfig.max || metaConfig.first || metaConfig.last || metaConfig.tags) {
+			consolidated = Metadata.consolidate(metaConfig, getMetadata(from, to), treeSum, treeCount);
+		} else {
+			consolidated = new Metadata(prefixAggregates.from(firstLeaf), prefixAggregates.to(lastLeaf), null, null, null, null, null, null, null);
+		}
+
+		if (metaConfig.hasPrefixSum()) consolidated.sum = prefixAggregates.sum(firstLeaf, lastLeaf);
+		if (metaConfig.hasPrefixCount()) consolidated.count = prefixAggregates.count(firstLeaf, lastLeaf);
+		return consolidated;
+	}
+}
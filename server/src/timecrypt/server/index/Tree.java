@@ -1,45 +1,95 @@
 package timecrypt.server.index;
 
 import java.util.ArrayList;
-import java.util.LinkedList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Queue;
+import java.util.Map;
 
 import timecrypt.server.index.Metadata;
 import timecrypt.server.index.MetadataConfiguration;
 import timecrypt.server.index.node.ChunkNode;
 import timecrypt.server.index.node.Node;
 
-public class Tree {
+/**
+ * Index with a node object per tree node, linked to its parent and its children
+ */
+public class Tree extends StreamIndex {
 	private Node root;
-	private int k; // maximum amount of children per node
-	private MetadataConfiguration metaConfig;
 	
 	private List<Node> lastNodes; // Stores last node under each tree level
-	private int leavesCount;
+	private LeafDirectory leaves; // answers range lookups without walking the tree
+	private boolean deferred; // aggregates of interior nodes are only computed once the nodes are full
+	private long retention; // chunks ending this long before the newest chunk starts are dropped, 0 keeps all
+	private int retentionLevel; // level of the nodes whose children are dropped, leaves are on level 0
 	
 	public Tree(int k, MetadataConfiguration metaConfig) {
+		super(k, metaConfig);
 		root = new Node();
 		
-		this.k = k;
-		this.metaConfig = metaConfig;
-		
 		lastNodes = new ArrayList<Node>();
 		lastNodes.add(root);
 
-		leavesCount = 0;
+		leaves = new LeafDirectory();
+		deferred = metaConfig.hasDeferredRollup();
+		retention = metaConfig.getRetention();
+		retentionLevel = metaConfig.getRetentionLevel();
+	}
+	
+	public void insert(String key, Metadata metadata) {
+		ChunkNode insertNode = append(key, metadata);
+		if (deferred) {
+			this.updateTimes(insertNode);
+			this.seal();
+		} else {
+			this.updateMetadata(insertNode); // update tree metadata for newly created node
+		}
 	}
 
-	public MetadataConfiguration getMetadataConfig() {
-		return this.metaConfig;
+	/**
+	 * Every node on the way receives the merged metadata of the new chunks below it instead of one update per chunk,
+	 * the updates of a node are consolidated together so that their ciphertexts are summed in one pass
+	 */
+	public void insertBatch(List<String> keys, List<Metadata> metadata) {
+		if (deferred) {
+			for (int i = 0; i < keys.size(); i++) {
+				insert(keys.get(i), metadata.get(i));
+			}
+			return;
+		}
+
+		Map<Node, List<Metadata>> updates = new LinkedHashMap<Node, List<Metadata>>(); // keeps the nodes in time order
+		for (int i = 0; i < keys.size(); i++) {
+			ChunkNode insertNode = append(keys.get(i), metadata.get(i));
+			addUpdate(updates, insertNode.parent, insertNode.metadata);
+		}
+
+		// All leaves are on the same level, so the updates move up one level at a time
+		while (!updates.isEmpty()) {
+			Map<Node, List<Metadata>> parentUpdates = new LinkedHashMap<Node, List<Metadata>>();
+			for (Map.Entry<Node, List<Metadata>> update : updates.entrySet()) {
+				Node node = update.getKey();
+				List<Metadata> nodeUpdates = update.getValue();
+				Metadata delta = nodeUpdates.size() == 1 ? nodeUpdates.get(0) : Metadata.consolidate(this.metaConfig, nodeUpdates);
+				Metadata.updateMetadata(this.metaConfig, delta, node.metadata);
+				if (node.parent != null) {
+					addUpdate(parentUpdates, node.parent, delta);
+				}
+			}
+			updates = parentUpdates;
+		}
 	}
-	
+
 	/**
-	 * Inserts chunk into the leaf node, constructing k-ary tree in a bottom-up way
+	 * Attaches a new leaf node to the k-ary tree in a bottom-up way, without rolling up its metadata
 	 */
-	public void insert(String key, Metadata metadata) {
+	private ChunkNode append(String key, Metadata metadata) {
 		ChunkNode insertNode = new ChunkNode(metadata, key);
-		this.leavesCount++;
+		this.leaves.append(metadata.from, metadata.to, key);
+		if (prefixAggregates != null) {
+			prefixAggregates.append(metadata);
+		}
 		
 		int currentLevel = 0;
 		
@@ -48,8 +98,7 @@ public class Tree {
 		if (lastLevelNode.children.size() < k) {
 			lastLevelNode.children.add(insertNode);
 			insertNode.parent = lastLevelNode;
-			this.updateMetadata(insertNode);
-			return;
+			return insertNode;
 		}
 
 		Node previousNode = insertNode;
@@ -84,10 +133,14 @@ public class Tree {
 			lastRoot.parent = root;
 			previousNode.parent = root;
 			lastNodes.add(root);
-			this.updateMetadata(lastRoot);
+			if (deferred) {
+				this.updateTimes(lastRoot);
+			} else {
+				this.updateMetadata(lastRoot);
+			}
 		}
 
-		this.updateMetadata(insertNode); // update tree metadata for newly created node
+		return insertNode;
 	}
 
 	public List<String> getRange(long from, long to) throws IllegalArgumentException {
@@ -95,29 +148,7 @@ public class Tree {
 			throw new IllegalArgumentException();
 		}
 
-		List<String> matchingStorageKeys = new ArrayList<String>();
-
-		// Run BFS and collect matching chunks for this time range
-		Queue<Node> queue = new LinkedList<Node>();
-		queue.add(root);
-
-		while (queue.size() != 0) {
-			Node current = queue.poll();
-
-			// Range check, don't continue if the node is out of range
-			if (!inRange(current, from, to)) {
-				continue;
-			}
-			if (current instanceof ChunkNode) {
-				matchingStorageKeys.add(((ChunkNode) current).storeKey);
-			}
-
-			for (Node node : current.children) {
-				queue.add(node);
-			}
-		}
-
-		return matchingStorageKeys;
+		return leaves.keys(from, to);
 	}
 	
 	public List<Metadata> getMetadata(long from, long to) {
@@ -126,38 +157,31 @@ public class Tree {
 		}
 
 		List<Metadata> gatheredStatistics = new ArrayList<Metadata>();
-		Queue<Node> queue = new LinkedList<Node>();
-		queue.add(root);
-
-		while (queue.size() != 0) {
-			Node current = queue.poll();
-
-			// Range check
-			if (!inRange(current, from, to)) {
-				continue;
-			}
-			
-			// If current node is fully contained within the search range, then store its stats
-			if (current.metadata.from >= from && current.metadata.to <= to) {
-				gatheredStatistics.add(current.metadata);
-				continue;
-			}
-
-			// Else explore child nodes for the 
-			for (Node node : current.children) {
-				queue.add(node);
-			}
+		if (inRange(root, from, to)) {
+			collect(root, from, to, gatheredStatistics);
 		}
 
 		return gatheredStatistics;
 	}
 	
+	/**
+	 * A node is used as a whole for the window containing it, so subtrees are only explored when they span several windows
+	 */
+	public List<List<Metadata>> getMetadataSeries(long from, long to, long step) {
+		List<List<Metadata>> series = emptySeries(from, to, step);
+		if (inRange(root, from, to)) {
+			collectSeries(root, from, to, step, series);
+		}
+
+		return series;
+	}
+
 	/**
 	 * Checks that data to be inserted is newer then the last inserted chunk.
 	 * Ensures that index is append-only.
 	 */
 	public boolean dataIsNewer(Metadata md) {
-		if (md.from > lastNodes.get(0).metadata.from) {
+		if (md.from > leaves.lastFrom()) {
 			return true;
 		}
 
@@ -165,7 +189,157 @@ public class Tree {
 	}
 
 	public int getLeavesCount() {
-		return this.leavesCount;
+		return this.leaves.size();
+	}
+
+	public int getLevels() {
+		return lastNodes.size() + 1;
+	}
+
+	/**
+	 * Every level but the last is full, so the count follows from the children of the last nodes
+	 */
+	public int getNodeCount(int level) {
+		if (level > lastNodes.size()) {
+			return 0;
+		}
+
+		int count = 1; // the root
+		for (int l = lastNodes.size() - 1; l >= level; l--) {
+			count = (count - 1) * k + lastNodes.get(l).children.size();
+		}
+		return count;
+	}
+
+	public Metadata getNodeMetadata(int level, int position) {
+		Node node = node(level, position);
+		return node == null ? null : node.metadata;
+	}
+
+	public String getChunkKey(int position) {
+		Node node = node(0, position);
+		return node == null ? null : ((ChunkNode) node).storeKey;
+	}
+
+	/**
+	 * Links the persisted nodes from the root down, nodes whose parent was dropped are dropped as well.
+	 * Nodes that are followed by another node on their level are full and sealed.
+	 */
+	public void load(NodeLevels levels) throws IllegalArgumentException {
+		int height = levels.getLevels() - 1;
+		if (height < 1 || levels.getCount(height) != 1 || levels.get(height, 0) == null) {
+			throw new IllegalArgumentException("The persisted tree has no root.");
+		}
+
+		root = new Node(levels.get(height, 0));
+		List<Node> upper = Collections.singletonList(root);
+		int upperFirst = 0;
+		Node[] last = new Node[height - 1]; // last nodes of the levels between the chunks and the root
+		for (int l = height - 1; l >= 0; l--) {
+			int first = levels.getFirst(l);
+			List<Node> current = new ArrayList<Node>();
+			for (int position = first; position < levels.getCount(l); position++) {
+				Metadata md = levels.get(l, position);
+				int parentIndex = position / k - upperFirst;
+				Node parent = parentIndex < 0 || parentIndex >= upper.size() ? null : upper.get(parentIndex);
+				Node node = null;
+				if (md != null && parent != null) {
+					node = l == 0 ? new ChunkNode(md, levels.getKey(position)) : new Node(md);
+					node.parent = parent;
+					node.sealed = deferred && l > 0 && position < levels.getCount(l) - 1;
+					parent.children.add(node);
+					if (l == 0) {
+						leaves.append(md.from, md.to, levels.getKey(position));
+					}
+				}
+				current.add(node);
+			}
+			if (l > 0) {
+				last[l - 1] = current.isEmpty() ? null : current.get(current.size() - 1);
+				if (last[l - 1] == null) {
+					throw new IllegalArgumentException("The persisted tree misses the last node of level " + l + ".");
+				}
+			}
+			upper = current;
+			upperFirst = first;
+		}
+
+		lastNodes = new ArrayList<Node>(Arrays.asList(last));
+		lastNodes.add(root);
+		if (deferred) {
+			for (Node node : lastNodes) {
+				node.sealed = node.children.size() == k && isAggregated(node.children.get(k - 1));
+			}
+		}
+		loadPrefixAggregates(levels);
+	}
+
+	/**
+	 * Descends from the root to the node at the position of the level, null if it is below a pruned node
+	 */
+	private Node node(int level, int position) {
+		int height = lastNodes.size();
+		if (level > height || position < 0 || position >= getNodeCount(level)) {
+			return null;
+		}
+
+		int[] ancestors = new int[height - level + 1]; // positions of the node and its ancestors, the root last
+		ancestors[0] = position;
+		for (int i = 1; i < ancestors.length; i++) {
+			ancestors[i] = ancestors[i - 1] / k;
+		}
+
+		Node node = root;
+		for (int i = ancestors.length - 2; i >= 0; i--) {
+			int child = ancestors[i] - ancestors[i + 1] * k;
+			if (child >= node.children.size()) {
+				return null;
+			}
+			node = node.children.get(child);
+		}
+		return node;
+	}
+
+	/**
+	 * Drops the children of the nodes on the retention level that end before the cutoff.
+	 * Queries then take such a node as a whole or not at all.
+	 */
+	public List<String> prune() {
+		List<String> dropped = new ArrayList<String>();
+		if (retention > 0 && leaves.size() > 0) {
+			prune(root, lastNodes.size(), leaves.lastFrom() - retention, dropped);
+			leaves.dropFirst(dropped.size()); // nodes are pruned from the oldest one on, so the dropped leaves come first
+		}
+		return dropped;
+	}
+
+	private void prune(Node node, int level, long cutoff, List<String> dropped) {
+		if (node.pruned || level < retentionLevel) {
+			return;
+		}
+		if (level == retentionLevel) {
+			if (node.metadata.to < cutoff) {
+				collectKeys(node, dropped);
+				node.children = new ArrayList<Node>(0);
+				node.pruned = true;
+			}
+			return;
+		}
+
+		for (int i = 0; i < node.children.size() && node.children.get(i).metadata.from < cutoff; i++) {
+			prune(node.children.get(i), level - 1, cutoff, dropped);
+		}
+		node.pruned = node.metadata.to < cutoff;
+	}
+
+	private void collectKeys(Node node, List<String> keys) {
+		if (node instanceof ChunkNode) {
+			keys.add(((ChunkNode) node).storeKey);
+			return;
+		}
+		for (Node child : node.children) {
+			collectKeys(child, keys);
+		}
 	}
 
 	/**
@@ -179,6 +353,100 @@ public class Tree {
 		}
 	}
 
+	/**
+	 * Extends the time range of the ancestors to the new node.
+	 * This part of the roll-up cannot be deferred as queries descend the tree by time.
+	 */
+	private void updateTimes(Node newNode) {
+		for (Node parent = newNode.parent; parent != null; parent = parent.parent) {
+			if (parent.metadata.from == 0L) {
+				parent.metadata.from = newNode.metadata.from;
+			}
+			parent.metadata.to = newNode.metadata.to;
+		}
+	}
+
+	/**
+	 * Computes the aggregates of the last nodes that became full, bottom-up as a node is only full once its last child is
+	 */
+	private void seal() {
+		for (Node node : lastNodes) {
+			if (node.sealed || node.children.size() < k || !isAggregated(node.children.get(k - 1))) {
+				return;
+			}
+
+			List<Metadata> childMetadata = new ArrayList<Metadata>(k);
+			for (Node child : node.children) {
+				childMetadata.add(child.metadata);
+			}
+			node.metadata = Metadata.consolidate(this.metaConfig, childMetadata);
+			node.sealed = true;
+		}
+	}
+
+	/**
+	 * With deferred roll-up, the nodes on the right-most path hold no aggregates until they are sealed
+	 */
+	private boolean isAggregated(Node node) {
+		return !deferred || node.sealed || node instanceof ChunkNode;
+	}
+
+	private void addUpdate(Map<Node, List<Metadata>> updates, Node node, Metadata update) {
+		List<Metadata> nodeUpdates = updates.get(node);
+		if (nodeUpdates == null) {
+			nodeUpdates = new ArrayList<Metadata>();
+			updates.put(node, nodeUpdates);
+		}
+		nodeUpdates.add(update);
+	}
+
+	/**
+	 * Gathers the nodes fully contained within the range in time order, only the nodes at the range borders are split further
+	 */
+	private void collect(Node current, long from, long to, List<Metadata> gatheredStatistics) {
+		if (current.metadata.from >= from && current.metadata.to <= to && isAggregated(current)) {
+			gatheredStatistics.add(current.metadata);
+			return;
+		}
+
+		List<Node> children = current.children;
+		for (int i = firstChildEndingAfter(children, from); i < children.size() && children.get(i).metadata.from <= to; i++) {
+			collect(children.get(i), from, to, gatheredStatistics);
+		}
+	}
+
+	private void collectSeries(Node current, long from, long to, long step, List<List<Metadata>> series) {
+		// If current node is fully contained within one window, then store its stats for that window
+		long window = window(current.metadata.from, from, step);
+		long windowFrom = from + window * step;
+		long windowTo = windowTo(windowFrom, to, step);
+		if (current.metadata.from >= windowFrom && current.metadata.to <= windowTo && isAggregated(current)) {
+			series.get((int) window).add(current.metadata);
+			return;
+		}
+
+		List<Node> children = current.children;
+		for (int i = firstChildEndingAfter(children, from); i < children.size() && children.get(i).metadata.from <= to; i++) {
+			collectSeries(children.get(i), from, to, step, series);
+		}
+	}
+
+	/**
+	 * Children are ordered by time as the tree is append-only, so the first one ending at or after the time is found by binary search
+	 */
+	private int firstChildEndingAfter(List<Node> children, long time) {
+		int low = 0, high = children.size();
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (children.get(mid).metadata.to < time) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
 	private boolean inRange(Node current, long from, long to) {
 		if (current.metadata.from <= to && from <= current.metadata.to) {
 			return true;
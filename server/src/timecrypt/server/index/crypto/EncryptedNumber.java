@@ -3,4 +3,5 @@ package timecrypt.server.index.crypto;
 public interface EncryptedNumber {
     public Object getValue();
     public String toJsonString();
+    public byte[] toBytes();
 }
\ No newline at end of file
@@ -3,11 +3,22 @@ package timecrypt.server.index.crypto;
 import ch.ethz.dsg.ecelgamal.ECElGamal;
 import ch.ethz.dsg.ecelgamal.ECElGamal.ECElGamalCiphertext;
 import com.n1analytics.paillier.EncryptedNumber;
+import java.math.BigInteger;
 import java.util.Base64;
+import java.util.List;
 
+/**
+ * Immutable wrapper of a Paillier or EC-ElGamal ciphertext.
+ * Paillier ciphertexts of a stream are kept in the Montgomery form of its {@link PaillierEngine} only,
+ * the javallier number is created when it is needed and not kept.
+ * Responses to clients carry obfuscated Paillier ciphertexts, the write-ahead log, snapshots and the off-heap arena
+ * store the ciphertext as it is, see {@link #toStoredBytes()}.
+ */
 public class HomomorphicEncryptedNumber implements timecrypt.server.index.crypto.EncryptedNumber {
 
-    private Object number;
+    private final Object number; // null for ciphertexts in Montgomery form
+    private final PaillierEngine engine;
+    private final BigInteger montgomery;
 
     public HomomorphicEncryptedNumber(Object number) {
         if (number instanceof EncryptedNumber || number instanceof ECElGamalCiphertext) {
@@ -15,10 +26,21 @@ public class HomomorphicEncryptedNumber implements timecrypt.server.index.crypto
         } else {
             throw new RuntimeException("Number provided is neither Paillier, nor ECELGamal encrypted.");
         }
+        this.engine = null;
+        this.montgomery = null;
+    }
+
+    /**
+     * Paillier ciphertext in the Montgomery form of the engine
+     */
+    public HomomorphicEncryptedNumber(PaillierEngine engine, BigInteger montgomery) {
+        this.number = null;
+        this.engine = engine;
+        this.montgomery = montgomery;
     }
 
     public Object getValue() {
-        return this.number;
+        return number != null ? number : engine.fromMontgomery(montgomery);
     }
 
     public HomomorphicEncryptedNumber add(HomomorphicEncryptedNumber number) {
@@ -26,24 +48,100 @@ public class HomomorphicEncryptedNumber implements timecrypt.server.index.crypto
             throw new RuntimeException("Objects have different types, summation is not possible.");
         }
 
+        if (engine != null && engine == number.engine) {
+            return new HomomorphicEncryptedNumber(engine, engine.add(montgomery, number.montgomery));
+        }
+
         if (isPaillierEncrypted()) {
-            return new HomomorphicEncryptedNumber(((EncryptedNumber) this.number).add((EncryptedNumber) number.getValue()));
+            return new HomomorphicEncryptedNumber(((EncryptedNumber) getValue()).add((EncryptedNumber) number.getValue()));
         } 
         
         return new HomomorphicEncryptedNumber(ECElGamal.add((ECElGamalCiphertext) this.number, (ECElGamalCiphertext) number.getValue()));
     }
 
+    /**
+     * Sum of a non-empty list of ciphertexts of the same type, without wrapping the intermediate sums.
+     * Paillier ciphertexts of the engine of the first one are summed in Montgomery form wherever they are in the list,
+     * the others are summed as javallier numbers and added to that sum once.
+     * EC-ElGamal ciphertexts are still added pair by pair as the library has no call adding more than two of them.
+     */
+    public static HomomorphicEncryptedNumber sum(List<HomomorphicEncryptedNumber> numbers) {
+        HomomorphicEncryptedNumber first = numbers.get(0);
+        if (numbers.size() == 1) {
+            return first;
+        }
+        for (HomomorphicEncryptedNumber number : numbers) {
+            if (!number.sameTypes(first)) {
+                throw new RuntimeException("Objects have different types, summation is not possible.");
+            }
+        }
+
+        if (!first.isPaillierEncrypted()) {
+            ECElGamalCiphertext sum = (ECElGamalCiphertext) first.number;
+            for (int i = 1; i < numbers.size(); i++) {
+                sum = ECElGamal.add(sum, (ECElGamalCiphertext) numbers.get(i).number);
+            }
+            return new HomomorphicEncryptedNumber(sum);
+        }
+
+        PaillierEngine engine = first.engine;
+        BigInteger montgomery = null;
+        EncryptedNumber others = null; // ciphertexts of no or of another engine
+        for (HomomorphicEncryptedNumber number : numbers) {
+            if (engine != null && number.engine == engine) {
+                montgomery = montgomery == null ? number.montgomery : engine.add(montgomery, number.montgomery);
+            } else {
+                others = others == null ? (EncryptedNumber) number.getValue() : others.add((EncryptedNumber) number.getValue());
+            }
+        }
+
+        if (others == null) {
+            return new HomomorphicEncryptedNumber(engine, montgomery);
+        }
+        return new HomomorphicEncryptedNumber(montgomery == null ? others : engine.fromMontgomery(montgomery).add(others));
+    }
+
+    /**
+     * Only Paillier supports subtraction, the EC-ElGamal library does not expose the inverse of a ciphertext
+     */
+    public HomomorphicEncryptedNumber subtract(HomomorphicEncryptedNumber number) {
+        if (!sameTypes(number) || !isPaillierEncrypted()) {
+            throw new RuntimeException("Subtraction is only possible for Paillier encrypted numbers.");
+        }
+
+        return new HomomorphicEncryptedNumber(((EncryptedNumber) getValue()).subtract((EncryptedNumber) number.getValue()));
+    }
+
     public String toJsonString() {
         if (isPaillierEncrypted()) {
-            return ((EncryptedNumber) this.number).calculateCiphertext().toString();
+            return ((EncryptedNumber) getValue()).calculateCiphertext().toString();
         }
-        
+
         return "\"" + Base64.getEncoder().encodeToString(((ECElGamalCiphertext) this.number).encode()) + "\"";
     }
 
+    public byte[] toBytes() {
+        if (isPaillierEncrypted()) {
+            return ((EncryptedNumber) getValue()).calculateCiphertext().toByteArray();
+        }
+
+        return ((ECElGamalCiphertext) this.number).encode();
+    }
+
+    /**
+     * Bytes for the server's own storage, a Paillier ciphertext in Montgomery form is only reduced and not obfuscated
+     */
+    public byte[] toStoredBytes() {
+        if (engine != null) {
+            return engine.toCiphertext(montgomery).toByteArray();
+        }
+
+        return toBytes();
+    }
+
 
-    private boolean isPaillierEncrypted() {
-        if (this.number instanceof EncryptedNumber) {
+    public boolean isPaillierEncrypted() {
+        if (engine != null || this.number instanceof EncryptedNumber) {
             return true;
         }
 
@@ -59,7 +157,7 @@ public class HomomorphicEncryptedNumber implements timecrypt.server.index.crypto
     }
 
     private boolean sameTypes(HomomorphicEncryptedNumber number) {
-        if (number.getValue().getClass().equals(this.number.getClass())) {
+        if (number.isPaillierEncrypted() == isPaillierEncrypted()) {
             return true;
         }
 
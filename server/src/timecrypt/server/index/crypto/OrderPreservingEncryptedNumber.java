@@ -4,6 +4,9 @@ import java.math.BigInteger;
 import java.util.Base64;
 import ch.ethz.dsg.ore.ORE.ORECiphertext;
 
+/**
+ * Immutable wrapper of an OPE or ORE ciphertext
+ */
 public class OrderPreservingEncryptedNumber implements EncryptedNumber {
 	private Object number;
 
@@ -54,6 +57,14 @@ public class OrderPreservingEncryptedNumber implements EncryptedNumber {
 		return "\"" + Base64.getEncoder().encodeToString(((ORECiphertext) this.number).encode()) + "\"";
 	}
 
+	public byte[] toBytes() {
+		if (isOPEEncrypted()) {
+			return ((BigInteger) this.number).toByteArray();
+		}
+
+		return ((ORECiphertext) this.number).encode();
+	}
+
 	public boolean isOPEEncrypted() {
 		if (this.number instanceof BigInteger) {
 			return true;
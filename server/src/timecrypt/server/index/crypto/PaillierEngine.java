@@ -0,0 +1,62 @@
+package timecrypt.server.index.crypto;
+
+import com.n1analytics.paillier.EncryptedNumber;
+import com.n1analytics.paillier.PaillierContext;
+import java.math.BigInteger;
+
+/**
+ * Homomorphic addition of the Paillier ciphertexts of a stream in Montgomery form.
+ * A ciphertext c is kept as cR mod n^2 with R a power of two above n^2, so that adding two ciphertexts is a
+ * Montgomery multiplication, which replaces the division by n^2 with shifts and masks.
+ * Ciphertexts only return to the normal form when they are serialized.
+ * PaillierEngineBenchmark in the tests compares the additions with the ones of javallier.
+ */
+public class PaillierEngine {
+
+    private final PaillierContext context;
+    private final int exponent;
+    private final BigInteger modulus; // n^2
+    private final int shift; // R = 2^shift
+    private final BigInteger mask; // R - 1
+    private final BigInteger modulusInverse; // -(n^2)^-1 mod R
+
+    public PaillierEngine(PaillierContext context, int exponent) {
+        this.context = context;
+        this.exponent = exponent;
+        this.modulus = context.getPublicKey().getModulusSquared();
+        this.shift = (modulus.bitLength() + 31) & ~31;
+        this.mask = BigInteger.ONE.shiftLeft(shift).subtract(BigInteger.ONE);
+        this.modulusInverse = modulus.modInverse(BigInteger.ONE.shiftLeft(shift)).negate().and(mask); // n^2 is odd
+    }
+
+    public BigInteger toMontgomery(BigInteger ciphertext) {
+        return ciphertext.shiftLeft(shift).mod(modulus);
+    }
+
+    public EncryptedNumber fromMontgomery(BigInteger montgomery) {
+        return new EncryptedNumber(context, toCiphertext(montgomery), exponent);
+    }
+
+    /**
+     * Ciphertext in normal form, as the javallier number holds it before obfuscation
+     */
+    public BigInteger toCiphertext(BigInteger montgomery) {
+        return reduce(montgomery);
+    }
+
+    /**
+     * Sum of the plaintexts of two ciphertexts in Montgomery form
+     */
+    public BigInteger add(BigInteger a, BigInteger b) {
+        return reduce(a.multiply(b));
+    }
+
+    /**
+     * Montgomery reduction, returns tR^-1 mod n^2 for t < n^2R
+     */
+    private BigInteger reduce(BigInteger t) {
+        BigInteger m = t.and(mask).multiply(modulusInverse).and(mask);
+        BigInteger reduced = t.add(m.multiply(modulus)).shiftRight(shift);
+        return reduced.compareTo(modulus) >= 0 ? reduced.subtract(modulus) : reduced;
+    }
+}
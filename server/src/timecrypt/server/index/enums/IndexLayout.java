@@ -0,0 +1,12 @@
+package timecrypt.server.index.enums;
+
+import com.google.gson.annotations.SerializedName;
+
+public enum IndexLayout {
+    @SerializedName(value = "pointer", alternate = {"POINTER"})
+    POINTER, 
+    @SerializedName(value = "array", alternate = {"ARRAY"})
+    ARRAY, 
+    @SerializedName(value = "snapshot", alternate = {"SNAPSHOT"})
+    SNAPSHOT;
+}
@@ -9,6 +9,8 @@ public class Node {
 	public List<Node> children;
 
 	public Metadata metadata;
+	public boolean sealed; // the node is full and its metadata is final, only tracked with deferred roll-up
+	public boolean pruned; // nothing below the node is left to drop, only tracked with retention
 	
 	public Node() {
 		this(new Metadata());
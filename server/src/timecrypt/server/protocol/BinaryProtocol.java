@@ -0,0 +1,205 @@
+package timecrypt.server.protocol;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+import com.n1analytics.paillier.PaillierPublicKey;
+
+import timecrypt.server.API;
+import timecrypt.server.index.Metadata;
+import timecrypt.server.index.MetadataCodec;
+import timecrypt.server.utils.FailureJson;
+
+/**
+ * Binary counterpart of the JSON protocol carrying raw ciphertext bytes instead of decimal and base64 text.
+ * A request starts with the operation code, so it can never be confused with a JSON request starting with '{'.
+ * A response starts with a status byte, followed by the result or by the failure message.
+ * Strings are written as modified UTF-8, stream identifiers as two longs and metadata in the format of {@link MetadataCodec}.
+ */
+public class BinaryProtocol {
+    private static Logger LOGGER_API = Logger.getLogger("TimeCrypt API");
+
+    public static final byte CREATE = 1;
+    public static final byte INSERT = 2;
+    public static final byte GET_RANGE = 3;
+    public static final byte GET_STATISTICS = 4;
+    public static final byte DELETE = 5;
+    public static final byte INSERT_BATCH = 6;
+    public static final byte GET_STATISTICS_SERIES = 7;
+
+    public static final byte OK = 0;
+    public static final byte FAILURE = 1;
+
+    public static boolean isBinary(byte[] request) {
+        return request.length > 0 && request[0] >= CREATE && request[0] <= GET_STATISTICS_SERIES;
+    }
+
+    public static boolean isReadOnly(byte[] request) {
+        return request[0] == GET_RANGE || request[0] == GET_STATISTICS || request[0] == GET_STATISTICS_SERIES;
+    }
+
+    public byte[] handle(byte[] request) {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(request));
+        try {
+            byte operation = in.readByte();
+            Object result = callMethod(operation, in);
+            if (result instanceof FailureJson) {
+                return failure(((FailureJson) result).getMessage());
+            }
+            return success(operation, result);
+        } catch (IOException e) {
+            return failure("Binary request provided is incorrect.");
+        } catch (OutOfMemoryError e) { // Out of memory error should not fail the server
+            return failure("TimeCrypt ran out of memory.");
+        }
+    }
+
+    private Object callMethod(byte operation, DataInputStream in) throws IOException {
+        LOGGER_API.info("Binary operation " + operation);
+        switch (operation) {
+            case CREATE: {
+                int k = in.readInt();
+                String contract = in.readUTF();
+                byte[] modulus = readBytes(in);
+                String storage = in.readUTF();
+
+                PaillierPublicKey pubkey = modulus.length == 0 ? null : new PaillierPublicKey(new BigInteger(modulus));
+                return API.createStream(k, contract, pubkey, storage.toLowerCase());
+            }
+            case INSERT: {
+                UUID streamID = readUUID(in);
+                String key = in.readUTF();
+                byte[] data = readBytes(in);
+                byte[] metadata = readBytes(in);
+
+                return API.insertEncoded(streamID, key, data, metadata);
+            }
+            case INSERT_BATCH: {
+                UUID streamID = readUUID(in);
+                int size = in.readInt();
+                if (size < 0 || size > in.available()) {
+                    throw new IOException("Invalid batch size.");
+                }
+
+                List<String> keys = new ArrayList<String>(size);
+                List<byte[]> data = new ArrayList<byte[]>(size);
+                List<byte[]> metadata = new ArrayList<byte[]>(size);
+                for (int i = 0; i < size; i++) {
+                    keys.add(in.readUTF());
+                    data.add(readBytes(in));
+                    metadata.add(readBytes(in));
+                }
+
+                return API.insertBatchEncoded(streamID, keys, data, metadata);
+            }
+            case GET_RANGE: {
+                UUID streamID = readUUID(in);
+                long from = in.readLong();
+                long to = in.readLong();
+
+                return API.getRangeData(streamID, from, to);
+            }
+            case GET_STATISTICS: {
+                UUID streamID = readUUID(in);
+                long from = in.readLong();
+                long to = in.readLong();
+
+                return API.getEncodedStatistics(streamID, from, to);
+            }
+            case GET_STATISTICS_SERIES: {
+                UUID streamID = readUUID(in);
+                long from = in.readLong();
+                long to = in.readLong();
+                long step = in.readLong();
+
+                return API.getConsolidatedStatisticsSeries(streamID, from, to, step);
+            }
+            case DELETE: {
+                return API.deleteStream(readUUID(in));
+            }
+            default: {
+                String msg = String.format("Operation %s is not supported", operation);
+                LOGGER_API.warning(msg);
+                return new FailureJson(msg);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private byte[] success(byte operation, Object result) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(OK);
+
+        switch (operation) {
+            case CREATE: {
+                UUID id = UUID.fromString((String) result);
+                out.writeLong(id.getMostSignificantBits());
+                out.writeLong(id.getLeastSignificantBits());
+                break;
+            }
+            case GET_RANGE: {
+                List<byte[]> chunks = (List<byte[]>) result;
+                out.writeInt(chunks.size());
+                for (byte[] chunk : chunks) {
+                    out.writeInt(chunk.length);
+                    out.write(chunk);
+                }
+                break;
+            }
+            case GET_STATISTICS: {
+                out.write((byte[]) result); // already in the format of MetadataCodec
+                break;
+            }
+            case GET_STATISTICS_SERIES: {
+                List<Metadata> series = (List<Metadata>) result;
+                out.writeInt(series.size());
+                for (Metadata window : series) {
+                    out.writeBoolean(window != null);
+                    if (window != null) MetadataCodec.encode(window, out);
+                }
+                break;
+            }
+            default: {
+                out.writeBoolean((Boolean) result);
+                break;
+            }
+        }
+
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    public byte[] failure(String msg) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(FAILURE);
+            out.writeUTF(msg);
+            out.flush();
+        } catch (IOException e) {} // writing to memory does not fail
+        return bytes.toByteArray();
+    }
+
+    private static UUID readUUID(DataInputStream in) throws IOException {
+        return new UUID(in.readLong(), in.readLong());
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > in.available()) {
+            throw new IOException("Invalid field length.");
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
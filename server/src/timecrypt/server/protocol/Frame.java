@@ -0,0 +1,15 @@
+package timecrypt.server.protocol;
+
+/**
+ * Request or response on the wire, the identifier of a request is echoed in its response
+ * so that clients can match responses arriving in completion order.
+ */
+public class Frame {
+    public final int id;
+    public final byte[] payload;
+
+    public Frame(int id, byte[] payload) {
+        this.id = id;
+        this.payload = payload;
+    }
+}
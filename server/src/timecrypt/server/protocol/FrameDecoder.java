@@ -0,0 +1,106 @@
+package timecrypt.server.protocol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Per-connection accumulator that splits the incoming byte stream into requests.
+ * Every request and response on the wire is prefixed with a header made of the big-endian payload length (4 bytes)
+ * and the request identifier (4 bytes).
+ */
+public class FrameDecoder {
+    public static final int HEADER_SIZE = 8;
+    public static final int MAX_FRAME_SIZE = 64 * 1024 * 1024; // 64 MB
+    private static final int DEFAULT_CAPACITY = 16384;
+
+    private ByteBuffer accumulator;
+    private long partialSince;
+
+    public FrameDecoder() {
+        accumulator = ByteBuffer.allocate(DEFAULT_CAPACITY);
+        partialSince = 0L;
+    }
+
+    /**
+     * Appends the bytes remaining in the source buffer to the accumulator
+     */
+    public void append(ByteBuffer src) {
+        if (accumulator.remaining() < src.remaining()) {
+            int required = accumulator.position() + src.remaining();
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(required, accumulator.capacity() * 2));
+            accumulator.flip();
+            grown.put(accumulator);
+            accumulator = grown;
+        }
+        accumulator.put(src);
+    }
+
+    /**
+     * Returns the next complete frame or null if more bytes are needed
+     */
+    public Frame nextFrame() throws IOException {
+        byte[] payload = null;
+        accumulator.flip();
+        try {
+            if (accumulator.remaining() < HEADER_SIZE) {
+                return null;
+            }
+
+            int length = accumulator.getInt(accumulator.position());
+            if (length < 0 || length > MAX_FRAME_SIZE) {
+                throw new IOException(String.format("Invalid frame length %s.", length));
+            }
+            if (accumulator.remaining() < HEADER_SIZE + length) {
+                return null;
+            }
+
+            int id = accumulator.getInt(accumulator.position() + 4);
+            payload = new byte[length];
+            accumulator.position(accumulator.position() + HEADER_SIZE);
+            accumulator.get(payload);
+            return new Frame(id, payload);
+        } finally {
+            accumulator.compact();
+            if (payload != null && accumulator.capacity() > DEFAULT_CAPACITY && accumulator.position() <= DEFAULT_CAPACITY) {
+                shrink(); // a large frame must not pin its buffer for the lifetime of the connection
+            }
+            if (accumulator.position() == 0) {
+                partialSince = 0L;
+            } else if (payload != null || partialSince == 0L) {
+                partialSince = System.currentTimeMillis();
+            }
+        }
+    }
+
+    /**
+     * Returns the capacity of the accumulator
+     */
+    public int capacity() {
+        return accumulator.capacity();
+    }
+
+    private void shrink() {
+        ByteBuffer shrunk = ByteBuffer.allocate(DEFAULT_CAPACITY);
+        accumulator.flip();
+        shrunk.put(accumulator);
+        accumulator = shrunk;
+    }
+
+    /**
+     * Checks whether a partially received frame has been waiting for longer than the timeout
+     */
+    public boolean isStalled(long timeoutMillis) {
+        return partialSince != 0L && partialSince + timeoutMillis < System.currentTimeMillis();
+    }
+
+    /**
+     * Returns the header of a frame, the payload is written right after it without copying it into a frame buffer
+     */
+    public static ByteBuffer header(int payloadLength, int id) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(payloadLength);
+        header.putInt(id);
+        header.flip();
+        return header;
+    }
+}
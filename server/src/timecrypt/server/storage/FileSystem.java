@@ -5,8 +5,11 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.List;
+import java.util.logging.Logger;
 
 public class FileSystem implements Storage {
+    private static Logger LOGGER_API = Logger.getLogger("TimeCrypt API");
 
     public String indexPath;
 
@@ -33,6 +36,26 @@ public class FileSystem implements Storage {
         return true;
     }
 
+    /**
+     * Stores the chunks into the stream directory, which is only checked once for the whole batch
+     */
+    public boolean storeBatch(String streamID, List<String> keys, List<byte[]> data) {
+        String dir = indexPath.concat(File.separator)
+            .concat(streamID)
+            .concat(File.separator);
+        createDirsIfNeeded(dir);
+
+        try {
+            for (int i = 0; i < keys.size(); i++) {
+                Files.write(Paths.get(dir.concat(keys.get(i))), data.get(i));
+            }
+        } catch (IOException e) {
+            LOGGER_API.warning("Chunks of stream " + streamID + " could not be stored: " + e.getMessage());
+            return false;
+        }
+        return true;
+    }
+
     public byte[] get(String streamID, String key) {
         String dir = indexPath.concat(File.separator)
             .concat(streamID)
@@ -48,6 +71,20 @@ public class FileSystem implements Storage {
         return data;
     }
 
+    public boolean delete(String streamID, String key) {
+        String dir = indexPath.concat(File.separator)
+            .concat(streamID)
+            .concat(File.separator);
+
+        try {
+            Files.deleteIfExists(Paths.get(dir.concat(key)));
+        } catch (IOException e) {
+            LOGGER_API.warning("Chunk " + key + " of stream " + streamID + " could not be deleted: " + e.getMessage());
+            return false;
+        }
+        return true;
+    }
+
     private void createDirsIfNeeded(String pathStr) {
         Path path = Paths.get(pathStr);
         if (!Files.exists(path)) {
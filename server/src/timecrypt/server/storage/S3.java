@@ -13,12 +13,24 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * This is a temporary class for benchmarking purposes.
  * Keys must be stored in a configuration file instead.
  */
 public class S3 implements Storage {
+    private static final int CONCURRENT_UPLOADS = Integer.getInteger("timecrypt.s3.uploads", 16);
+    private static final ExecutorService UPLOADS = Executors.newFixedThreadPool(CONCURRENT_UPLOADS, r -> { // shared by the buckets of all streams
+        Thread thread = new Thread(r, "timecrypt-s3-upload");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     private AmazonS3 client;
     public String bucket;
@@ -57,6 +69,31 @@ public class S3 implements Storage {
         return true;
     }
 
+    /**
+     * Issues the puts of the batch concurrently, the batch fails if any of them fails
+     */
+    public boolean storeBatch(String streamID, List<String> keys, List<byte[]> data) {
+        List<Future<Boolean>> puts = new ArrayList<Future<Boolean>>(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            String key = keys.get(i);
+            byte[] bytes = data.get(i);
+            puts.add(UPLOADS.submit(() -> store(streamID, key, bytes)));
+        }
+
+        boolean stored = true;
+        for (Future<Boolean> put : puts) {
+            try {
+                stored &= put.get();
+            } catch (ExecutionException e) {
+                stored = false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return stored;
+    }
+
     public byte[] get(String streamID, String key) throws IOException {
         S3Object object = client.getObject(new GetObjectRequest(bucket, key));
         InputStream objectData = object.getObjectContent();
@@ -64,6 +101,16 @@ public class S3 implements Storage {
         return processInputStream(objectData);
     }
 
+    public boolean delete(String streamID, String key) {
+        try {
+            client.deleteObject(bucket, key);
+        } catch (Exception e) {
+            return false;
+        }
+
+        return true;
+    }
+
     private byte[] processInputStream(InputStream input) throws IOException {
         ByteArrayOutputStream buffer = new ByteArrayOutputStream();
         int nRead;
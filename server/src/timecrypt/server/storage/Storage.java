@@ -1,8 +1,22 @@
 package timecrypt.server.storage;
 
 import java.io.IOException;
+import java.util.List;
 
 public interface Storage {
     boolean store(String streamID, String key, byte[] data);
     byte[] get(String streamID, String key) throws IOException;
-}
\ No newline at end of file
+    boolean delete(String streamID, String key);
+
+    /**
+     * Stores chunks of one stream together, keys and data are matched by position
+     */
+    default boolean storeBatch(String streamID, List<String> keys, List<byte[]> data) {
+        for (int i = 0; i < keys.size(); i++) {
+            if (!store(streamID, keys.get(i), data.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -7,4 +7,8 @@ public class FailureJson {
     public FailureJson(String msg) {
         this.msg = msg;
     }
+
+    public String getMessage() {
+        return msg;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,177 @@
+package timecrypt.server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.junit.After;
+import org.junit.Test;
+import timecrypt.server.utils.Utility;
+
+public class ServerTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private Server server;
+    private int port;
+
+    @After
+    public void terminateServer() throws IOException {
+        if (server != null) {
+            server.terminate();
+        }
+    }
+
+    @Test
+    public void throwingRequestIsAnswered() throws IOException {
+        startServer();
+        try (Socket socket = new Socket("127.0.0.1", port)) {
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            send(out, 1, "{ 'operationID': 'create', 'k': 'abc', 'contract': '{}' }"); // the handler fails to parse k
+            JsonObject failure = new JsonParser().parse(new String(receive(in).get(1), UTF8)).getAsJsonObject();
+            assertEquals(true, failure.get("failure").getAsBoolean());
+
+            assertNotNull(createStream(out, in)); // the connection keeps serving requests
+        }
+    }
+
+    @Test
+    public void connectionsAreServedByEveryLoop() throws IOException {
+        System.setProperty("timecrypt.server.loops", "3");
+        try {
+            startServer();
+        } finally {
+            System.clearProperty("timecrypt.server.loops");
+        }
+
+        List<Socket> sockets = new ArrayList<Socket>();
+        try {
+            for (int i = 0; i < 7; i++) {
+                sockets.add(new Socket("127.0.0.1", port));
+            }
+            for (Socket socket : sockets) { // all connections have a request pending before any is answered
+                send(new DataOutputStream(socket.getOutputStream()), 1, "{ 'operationID': 'create', 'k': 2, 'contract': '{}', 'storage': 'fs' }");
+            }
+            for (Socket socket : sockets) {
+                String streamID = new JsonParser().parse(new String(receive(new DataInputStream(socket.getInputStream())).get(1), UTF8)).getAsString();
+                assertNotNull(Utility.UUIDFromString(streamID));
+            }
+        } finally {
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+        }
+    }
+
+    @Test
+    public void overloadedWorkersRejectRequests() throws IOException {
+        System.setProperty("timecrypt.server.workers", "1");
+        System.setProperty("timecrypt.server.queue", "1");
+        try {
+            startServer();
+        } finally {
+            System.clearProperty("timecrypt.server.workers");
+            System.clearProperty("timecrypt.server.queue");
+        }
+
+        try (Socket socket = new Socket("127.0.0.1", port)) {
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            String streamID = createStream(out, in);
+            send(out, 2, String.format("{ 'operationID': 'insert', 'streamID': '%s', 'key': 'k1', 'data': 'AQ==', 'metadata': \"{ 'from': 1, 'to': 2 }\" }", streamID));
+            assertEquals("true", new String(receive(in).get(2), UTF8));
+
+            // Reads run concurrently, so they are all handed to the single worker at once
+            int requests = 30;
+            for (int id = 3; id < 3 + requests; id++) {
+                send(out, id, String.format("{ 'operationID': 'getstatisticsseries', 'streamID': '%s', 'from': 1, 'to': 199999, 'step': 2 }", streamID));
+            }
+
+            int rejected = 0;
+            for (int i = 0; i < requests; i++) {
+                JsonElement response = new JsonParser().parse(new String(receive(in).values().iterator().next(), UTF8));
+                if (response.isJsonObject()) {
+                    assertEquals("TimeCrypt is overloaded, try again later.", response.getAsJsonObject().get("msg").getAsString());
+                    rejected++;
+                }
+            }
+            assertTrue(rejected > 0 && rejected < requests);
+        }
+    }
+
+    @Test
+    public void responsesLargerThanTheSocketBufferAreQueued() throws IOException {
+        startServer();
+        try (Socket socket = new Socket("127.0.0.1", port)) {
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            String streamID = createStream(out, in);
+            send(out, 2, String.format("{ 'operationID': 'insert', 'streamID': '%s', 'key': 'k1', 'data': 'AQ==', 'metadata': \"{ 'from': 1, 'to': 2 }\" }", streamID));
+            assertEquals("true", new String(receive(in).get(2), UTF8));
+
+            // Every series is a few hundred kilobytes, the client only reads once all requests are sent
+            int requests = 20;
+            for (int id = 3; id < 3 + requests; id++) {
+                send(out, id, String.format("{ 'operationID': 'getstatisticsseries', 'streamID': '%s', 'from': 1, 'to': 199999, 'step': 2 }", streamID));
+            }
+
+            Map<Integer, byte[]> responses = new HashMap<Integer, byte[]>();
+            for (int i = 0; i < requests; i++) {
+                responses.putAll(receive(in));
+            }
+            byte[] first = responses.get(3);
+            assertTrue(first.length > 400000);
+            for (int id = 3; id < 3 + requests; id++) {
+                assertArrayEquals(first, responses.get(id));
+            }
+            assertEquals(100000, new JsonParser().parse(new String(first, UTF8)).getAsJsonArray().size());
+        }
+    }
+
+    private void startServer() throws IOException {
+        port = 20000 + new Random().nextInt(10000);
+        server = new Server("127.0.0.1", port, new String[0]);
+        new Thread(server).start();
+    }
+
+    private static String createStream(DataOutputStream out, DataInputStream in) throws IOException {
+        send(out, 1, "{ 'operationID': 'create', 'k': 2, 'contract': '{}', 'storage': 'fs' }");
+        return new JsonParser().parse(new String(receive(in).get(1), UTF8)).getAsString();
+    }
+
+    private static void send(DataOutputStream out, int id, String request) throws IOException {
+        byte[] payload = request.getBytes(UTF8);
+        out.writeInt(payload.length);
+        out.writeInt(id);
+        out.write(payload);
+        out.flush();
+    }
+
+    /**
+     * Reads the next response, keyed by the identifier of its request
+     */
+    private static Map<Integer, byte[]> receive(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        int id = in.readInt();
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        Map<Integer, byte[]> response = new HashMap<Integer, byte[]>();
+        response.put(id, payload);
+        return response;
+    }
+}
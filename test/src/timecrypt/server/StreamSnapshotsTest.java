@@ -0,0 +1,234 @@
+package timecrypt.server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.gson.Gson;
+import com.n1analytics.paillier.PaillierPrivateKey;
+import com.n1analytics.paillier.PaillierPublicKey;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.BitSet;
+import java.util.UUID;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import timecrypt.server.index.Metadata;
+import timecrypt.server.index.MetadataCodec;
+import timecrypt.server.index.MetadataConfiguration;
+import timecrypt.server.index.StreamIndex;
+import timecrypt.server.storage.Storage;
+
+public class StreamSnapshotsTest {
+
+    private static final String[] CONTRACTS = {
+        "{ 'sum': true, 'count': true, 'first': true, 'last': true, 'tags': true }",
+        "{ 'sum': true, 'count': true, 'tags': true, 'index': { 'deferred': true } }",
+        "{ 'sum': true, 'count': true, 'last': true, 'index': { 'prefix': true } }",
+        "{ 'sum': true, 'count': true, 'first': true, 'tags': true, 'index': { 'layout': 'ARRAY' } }",
+        "{ 'sum': true, 'count': true, 'tags': true, 'index': { 'layout': 'ARRAY', 'offheap': true, 'prefix': true } }",
+        "{ 'sum': true, 'count': true, 'first': true, 'tags': true, 'index': { 'layout': 'SNAPSHOT' } }"
+    };
+    private static final int K = 3;
+
+    private static final Storage STORAGE = new Storage() { // takes the deletes of pruned chunks
+        public boolean store(String streamID, String key, byte[] data) { return true; }
+        public byte[] get(String streamID, String key) { return null; }
+        public boolean delete(String streamID, String key) { return true; }
+    };
+
+    private static PaillierPublicKey publicKey;
+
+    private Path directory;
+    private StreamSnapshots snapshots;
+
+    @BeforeClass
+    public static void createKey() {
+        publicKey = PaillierPrivateKey.create(1024).getPublicKey();
+    }
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("timecrypt-snapshots");
+        snapshots = new StreamSnapshots(directory);
+    }
+
+    @After
+    public void deleteDirectory() throws IOException {
+        delete(directory);
+    }
+
+    @Test
+    public void restoreEveryLayout() throws IOException {
+        for (String contract : CONTRACTS) {
+            Stream stream = createStream(contract);
+            int inserted = 0;
+            for (int count : new int[] { 1, 7, 20, 53, 1 }) { // snapshots in between only log the new nodes
+                for (int i = 0; i < count; i++) {
+                    inserted++;
+                    stream.append("k" + inserted, chunk(stream, inserted));
+                }
+                assertEquals(true, snapshots.snapshot(stream));
+            }
+
+            StreamIndex restored = restore(stream.id, contract);
+            assertSameIndex(stream.index, restored);
+        }
+    }
+
+    @Test
+    public void restoreEmptyStream() throws IOException {
+        for (String contract : CONTRACTS) {
+            Stream stream = createStream(contract);
+            assertEquals(true, snapshots.snapshot(stream));
+
+            StreamIndex restored = restore(stream.id, contract);
+            assertSameIndex(stream.index, restored);
+            restored.insert("k1", chunk(stream, 1));
+            assertEquals(1, restored.getLeavesCount());
+        }
+    }
+
+    @Test
+    public void restoreDropsUnfinishedSnapshot() throws IOException {
+        String contract = CONTRACTS[0];
+        Stream stream = createStream(contract);
+        Stream expected = createStream(contract);
+        for (int i = 1; i <= 40; i++) {
+            Metadata chunk = chunk(stream, i);
+            stream.append("k" + i, chunk);
+            expected.append("k" + i, chunk);
+        }
+        assertEquals(true, snapshots.snapshot(stream));
+        Path dir = directory.resolve(stream.id.toString());
+        byte[] spine = Files.readAllBytes(dir.resolve("spine"));
+        long logged = Files.size(dir.resolve("nodes"));
+
+        for (int i = 41; i <= 70; i++) {
+            stream.append("k" + i, chunk(stream, i));
+        }
+        assertEquals(true, snapshots.snapshot(stream));
+
+        // A crash while logging the second snapshot leaves part of its nodes and the right-most path of the first
+        Files.write(dir.resolve("spine"), spine);
+        try (RandomAccessFile file = new RandomAccessFile(dir.resolve("nodes").toFile(), "rw")) {
+            file.setLength((logged + file.length()) / 2);
+        }
+
+        StreamIndex restored = restore(stream.id, contract);
+        assertSameIndex(expected.index, restored);
+        assertEquals(logged, Files.size(dir.resolve("nodes")));
+    }
+
+    @Test
+    public void restoreCompactsPrunedChunks() throws IOException {
+        String contract = "{ 'sum': true, 'count': true, 'tags': true, 'index': { 'retention': 200, 'retentionLevel': 2 } }";
+        Stream stream = createStream(contract, STORAGE);
+        Stream unpruned = createStream("{ 'sum': true, 'count': true, 'tags': true }", STORAGE);
+        int inserted = 0;
+        for (int count : new int[] { 40, 60 }) {
+            for (int i = 0; i < count; i++) {
+                inserted++;
+                Metadata chunk = chunk(stream, inserted);
+                stream.append("k" + inserted, chunk);
+                unpruned.append("k" + inserted, chunk);
+            }
+            assertEquals(true, snapshots.snapshot(stream));
+            assertEquals(true, snapshots.snapshot(unpruned));
+        }
+
+        StreamIndex restored = restore(stream.id, contract);
+        assertSameIndex(stream.index, restored);
+        assertEquals(0, restored.prune().size()); // the log no longer holds the dropped chunks
+        long size = Files.size(directory.resolve(stream.id.toString()).resolve("nodes"));
+        long unprunedSize = Files.size(directory.resolve(unpruned.id.toString()).resolve("nodes"));
+        assertTrue(size < unprunedSize / 2);
+    }
+
+    private Stream createStream(String contract) throws IOException {
+        return createStream(contract, null);
+    }
+
+    private Stream createStream(String contract, Storage storage) throws IOException {
+        UUID id = UUID.randomUUID();
+        snapshots.writeDescriptor(id, K, contract, publicKey, "fs");
+        return new Stream(id, StreamIndex.create(K, configuration(contract)), storage, null);
+    }
+
+    private StreamIndex restore(UUID id, String contract) throws IOException {
+        StreamSnapshots restarted = new StreamSnapshots(directory);
+        StreamIndex index = StreamIndex.create(K, configuration(contract));
+        restarted.load(id, index);
+        return index;
+    }
+
+    private static MetadataConfiguration configuration(String contract) {
+        MetadataConfiguration config = new Gson().fromJson(contract, MetadataConfiguration.class);
+        config.setPaillierPublicKey(publicKey);
+        return config;
+    }
+
+    private static Metadata chunk(Stream stream, int i) {
+        MetadataConfiguration config = stream.index.getMetadataConfig();
+        BitSet tags = new BitSet();
+        tags.set(i % 64);
+        // Only the fields of the contract, as the API parses them
+        return new Metadata(10L * i, 10L * i + 9,
+            config.paillierNumber(publicKey.raw_encrypt(BigInteger.valueOf(i))), config.paillierNumber(publicKey.raw_encrypt(BigInteger.ONE)),
+            null, null, config.first ? BigInteger.valueOf(i) : null, config.last ? BigInteger.valueOf(i) : null, config.tags ? tags : null);
+    }
+
+    /**
+     * Compares every node and a few queries, ciphertexts are compared in their serialized form
+     */
+    private static void assertSameIndex(StreamIndex expected, StreamIndex actual) throws IOException {
+        assertEquals(expected.getLeavesCount(), actual.getLeavesCount());
+        assertEquals(expected.getLevels(), actual.getLevels());
+        for (int l = 0; l < expected.getLevels(); l++) {
+            assertEquals(expected.getNodeCount(l), actual.getNodeCount(l));
+            for (int position = 0; position < expected.getNodeCount(l); position++) {
+                assertArrayEquals(encode(expected.getNodeMetadata(l, position)), encode(actual.getNodeMetadata(l, position)));
+            }
+        }
+        for (int position = 0; position < expected.getLeavesCount(); position++) {
+            assertEquals(expected.getChunkKey(position), actual.getChunkKey(position));
+            assertArrayEquals(encode(expected.getPrefixAggregates(position)), encode(actual.getPrefixAggregates(position)));
+        }
+
+        long end = 10L * expected.getLeavesCount() + 20;
+        for (long from = 1; from < end; from += 37) {
+            for (long to = from; to < end; to += 61) {
+                assertEquals(expected.getRange(from, to), actual.getRange(from, to));
+                assertArrayEquals(encode(expected.getStatistics(from, to)), encode(actual.getStatistics(from, to)));
+            }
+        }
+    }
+
+    private static byte[] encode(Metadata md) throws IOException {
+        if (md == null) {
+            return null;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        MetadataCodec.encodeStored(md, new DataOutputStream(bytes));
+        return bytes.toByteArray();
+    }
+
+    private static void delete(Path path) throws IOException {
+        if (Files.isDirectory(path)) {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(path)) {
+                for (Path file : files) {
+                    delete(file);
+                }
+            }
+        }
+        Files.delete(path);
+    }
+}
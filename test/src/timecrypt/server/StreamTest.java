@@ -0,0 +1,136 @@
+package timecrypt.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.gson.Gson;
+import com.n1analytics.paillier.EncryptedNumber;
+import com.n1analytics.paillier.PaillierPrivateKey;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import timecrypt.server.index.Metadata;
+import timecrypt.server.index.MetadataConfiguration;
+import timecrypt.server.index.StreamIndex;
+import timecrypt.server.index.crypto.HomomorphicEncryptedNumber;
+
+public class StreamTest {
+
+    private static final String[] CONTRACTS = {
+        "{ 'sum': true, 'count': true, 'tags': true }",
+        "{ 'sum': true, 'count': true, 'tags': true, 'index': { 'deferred': true } }",
+        "{ 'sum': true, 'count': true, 'tags': true, 'index': { 'prefix': true } }",
+        "{ 'sum': true, 'count': true, 'tags': true, 'index': { 'layout': 'ARRAY' } }",
+        "{ 'sum': true, 'count': true, 'tags': true, 'index': { 'layout': 'ARRAY', 'offheap': true } }",
+        "{ 'sum': true, 'count': true, 'tags': true, 'index': { 'layout': 'SNAPSHOT' } }"
+    };
+    private static final int K = 3;
+    private static final int CHUNKS = 500;
+    private static final int READERS = 3;
+
+    private static PaillierPrivateKey privateKey;
+
+    @BeforeClass
+    public static void createKey() {
+        privateKey = PaillierPrivateKey.create(512);
+    }
+
+    /**
+     * Readers query a stream while chunks are appended, every answer has to match the chunks of the range it reports
+     */
+    @Test
+    public void readersSeeConsistentStatisticsDuringInserts() throws Exception {
+        for (String contract : CONTRACTS) {
+            Stream stream = new Stream(UUID.randomUUID(), StreamIndex.create(K, configuration(contract)), null, null);
+            assertTrue(stream.append("k1", chunk(stream, 1))); // an empty index refuses time 0
+
+            AtomicBoolean inserting = new AtomicBoolean(true);
+            AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+            List<Thread> readers = new ArrayList<Thread>();
+            for (int r = 0; r < READERS; r++) {
+                Random random = new Random(r);
+                Thread reader = new Thread(() -> {
+                    try {
+                        while (inserting.get()) {
+                            long from = 10L * (1 + random.nextInt(CHUNKS));
+                            long to = from + 10L * random.nextInt(CHUNKS) + 9;
+                            assertConsistent(stream, from, to);
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                });
+                reader.start();
+                readers.add(reader);
+            }
+
+            try {
+                for (int i = 2; i <= CHUNKS; i++) {
+                    assertTrue(stream.append("k" + i, chunk(stream, i)));
+                }
+            } finally {
+                inserting.set(false);
+                for (Thread reader : readers) {
+                    reader.join();
+                }
+            }
+            if (failure.get() != null) {
+                throw new AssertionError(contract, failure.get());
+            }
+            assertConsistent(stream, 0, 10L * CHUNKS + 9);
+        }
+    }
+
+    /**
+     * Chunk i covers 10i to 10i+9 and holds the sum i, so the reported bounds of a range determine its aggregates
+     */
+    private static void assertConsistent(Stream stream, long from, long to) {
+        // Inserts may happen between the queries, so the chunks are looked up before and after the statistics
+        List<String> keys = stream.read(index -> index.getRange(from, to));
+        Metadata md = stream.read(index -> index.getStatistics(from, to));
+        if (md == null) {
+            assertEquals(0, keys.size()); // ranges are aligned to chunks
+            return;
+        }
+        keys = stream.read(index -> index.getRange(from, to));
+
+        long first = md.from / 10;
+        long last = md.to / 10;
+        assertEquals(md.from, 10 * first);
+        assertEquals(md.to, 10 * last + 9);
+        assertEquals(BigInteger.valueOf(last - first + 1), decrypt(md.count));
+        assertEquals(BigInteger.valueOf((first + last) * (last - first + 1) / 2), decrypt(md.sum));
+        for (long i = first; i <= last; i++) {
+            assertTrue(md.tags.get((int) (i % 64)));
+        }
+        assertTrue(keys.size() >= last - first + 1);
+        assertEquals("k" + first, keys.get(0));
+    }
+
+    private static BigInteger decrypt(HomomorphicEncryptedNumber number) {
+        return privateKey.raw_decrypt(((EncryptedNumber) number.getValue()).calculateCiphertext());
+    }
+
+    private static MetadataConfiguration configuration(String contract) {
+        MetadataConfiguration config = new Gson().fromJson(contract, MetadataConfiguration.class);
+        config.setPaillierPublicKey(privateKey.getPublicKey());
+        return config;
+    }
+
+    private static Metadata chunk(Stream stream, int i) {
+        MetadataConfiguration config = stream.index.getMetadataConfig();
+        BitSet tags = new BitSet();
+        tags.set(i % 64);
+        return new Metadata(10L * i, 10L * i + 9,
+            config.paillierNumber(privateKey.getPublicKey().raw_encrypt(BigInteger.valueOf(i))), config.paillierNumber(privateKey.getPublicKey().raw_encrypt(BigInteger.ONE)),
+            null, null, null, null, tags);
+    }
+}
@@ -0,0 +1,158 @@
+package timecrypt.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.UUID;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import timecrypt.server.index.Metadata;
+import timecrypt.server.index.MetadataCodec;
+import timecrypt.server.index.MetadataConfiguration;
+import timecrypt.server.index.StreamIndex;
+
+public class WriteAheadLogTest {
+
+    private static final MetadataConfiguration CONFIG = new MetadataConfiguration(false, false, false, false, true, true, true, null, null);
+
+    private Path directory;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("timecrypt-wal");
+    }
+
+    @After
+    public void deleteDirectory() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    @Test
+    public void replayInWrittenOrder() throws IOException {
+        UUID streamID = UUID.randomUUID();
+        writeChunks(streamID, 1, 5);
+
+        List<Metadata> replayed = replay(streamID);
+        assertEquals(5, replayed.size());
+        for (int i = 0; i < 5; i++) {
+            assertEquals(10L * (i + 1), replayed.get(i).from);
+            assertEquals(BigInteger.valueOf(i + 1), replayed.get(i).firstEntryValue);
+        }
+    }
+
+    @Test
+    public void replayStopsAtTornRecord() throws IOException {
+        UUID streamID = UUID.randomUUID();
+        writeChunks(streamID, 1, 3);
+
+        // A crash in the middle of the last record leaves only part of it
+        Path segment = directory.resolve("wal-0.log");
+        try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+            file.setLength(file.length() - 5);
+        }
+
+        List<Metadata> replayed = replay(streamID);
+        assertEquals(2, replayed.size());
+        assertEquals(20L, replayed.get(1).from);
+    }
+
+    @Test
+    public void replayStopsAtCorruptedRecord() throws IOException {
+        UUID streamID = UUID.randomUUID();
+        writeChunks(streamID, 1, 3);
+
+        Path segment = directory.resolve("wal-0.log");
+        try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+            file.seek(file.length() - 1);
+            int last = file.read();
+            file.seek(file.length() - 1);
+            file.write(last ^ 0xFF);
+        }
+
+        List<Metadata> replayed = replay(streamID);
+        assertEquals(2, replayed.size());
+        assertEquals(20L, replayed.get(1).from);
+    }
+
+    @Test
+    public void replayContinuesAfterRestart() throws IOException {
+        UUID streamID = UUID.randomUUID();
+        writeChunks(streamID, 1, 2);
+        writeChunks(streamID, 3, 4);
+
+        List<Metadata> replayed = replay(streamID);
+        assertEquals(4, replayed.size());
+        assertEquals(40L, replayed.get(3).from);
+    }
+
+    @Test
+    public void syncInsertIsIndexedOnceDurable() throws IOException {
+        WriteAheadLog wal = new WriteAheadLog(directory, WriteAheadLog.Durability.SYNC);
+        Stream stream = new Stream(UUID.randomUUID(), StreamIndex.create(2, CONFIG), null, wal);
+
+        assertTrue(stream.appendBatch(Arrays.asList("k1", "k2"), Arrays.asList(chunk(1), chunk(2))));
+        assertEquals(2, stream.index.getLeavesCount());
+        assertFalse(stream.append("k0", chunk(0)));
+        assertTrue(stream.append("k3", chunk(3)));
+        assertEquals(3, stream.index.getLeavesCount());
+        wal.close();
+
+        assertEquals(3, replay(stream.id).size());
+    }
+
+    private void writeChunks(UUID streamID, int first, int last) throws IOException {
+        WriteAheadLog wal = new WriteAheadLog(directory, WriteAheadLog.Durability.SYNC);
+        for (int i = first; i <= last; i++) {
+            wal.awaitDurable(wal.append(streamID, Arrays.asList("k" + i), Arrays.asList(chunk(i))));
+        }
+        wal.close();
+    }
+
+    /**
+     * Replays the log the way a restart does, by opening a new segment and reading the older ones
+     */
+    private List<Metadata> replay(UUID streamID) throws IOException {
+        List<Metadata> replayed = new ArrayList<Metadata>();
+        WriteAheadLog wal = new WriteAheadLog(directory, WriteAheadLog.Durability.SYNC);
+        try {
+            wal.replay((id, key, metadata) -> {
+                assertEquals(streamID, id);
+                try {
+                    Metadata md = MetadataCodec.decode(new DataInputStream(new ByteArrayInputStream(metadata)), CONFIG);
+                    assertEquals("k" + md.firstEntryValue, key);
+                    replayed.add(md);
+                } catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+            });
+        } finally {
+            wal.close();
+        }
+        return replayed;
+    }
+
+    private static Metadata chunk(int i) {
+        BitSet tags = new BitSet();
+        tags.set(i);
+        return new Metadata(10L * i, 10L * i + 9, null, null, null, null, BigInteger.valueOf(i), BigInteger.valueOf(i), tags);
+    }
+}
@@ -0,0 +1,91 @@
+package timecrypt.server.index.crypto;
+
+import static org.junit.Assert.assertEquals;
+
+import ch.ethz.dsg.ecelgamal.ECElGamal;
+import ch.ethz.dsg.ecelgamal.ECElGamal.ECElGamalCiphertext;
+import ch.ethz.dsg.ecelgamal.ECElGamal.ECElGamalKey;
+import com.n1analytics.paillier.EncryptedNumber;
+import com.n1analytics.paillier.PaillierContext;
+import com.n1analytics.paillier.PaillierPrivateKey;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class HomomorphicEncryptedNumberTest {
+
+    private static PaillierPrivateKey privateKey;
+    private static PaillierContext context;
+
+    @BeforeClass
+    public static void createKey() {
+        privateKey = PaillierPrivateKey.create(1024);
+        context = privateKey.getPublicKey().createSignedContext();
+    }
+
+    @Test
+    public void paillierSumMatchesPairwiseFold() {
+        PaillierEngine engine = new PaillierEngine(context, 0);
+        List<HomomorphicEncryptedNumber> numbers = new ArrayList<HomomorphicEncryptedNumber>();
+        for (int i = 1; i <= 40; i++) {
+            numbers.add(new HomomorphicEncryptedNumber(engine, engine.toMontgomery(privateKey.getPublicKey().raw_encrypt(BigInteger.valueOf(i)))));
+        }
+
+        assertSum(numbers, 820);
+        assertSum(numbers.subList(0, 1), 1);
+    }
+
+    /**
+     * Prefix differences are javallier numbers and streams restored with another engine may be summed together
+     */
+    @Test
+    public void mixedPaillierSumMatchesPairwiseFold() {
+        PaillierEngine engine = new PaillierEngine(context, 0);
+        PaillierEngine otherEngine = new PaillierEngine(context, 0);
+        List<HomomorphicEncryptedNumber> numbers = new ArrayList<HomomorphicEncryptedNumber>();
+        for (int i = 1; i <= 40; i++) {
+            BigInteger ciphertext = privateKey.getPublicKey().raw_encrypt(BigInteger.valueOf(i));
+            if (i % 3 == 0) {
+                numbers.add(new HomomorphicEncryptedNumber(new EncryptedNumber(context, ciphertext, 0)));
+            } else if (i % 5 == 0) {
+                numbers.add(new HomomorphicEncryptedNumber(otherEngine, otherEngine.toMontgomery(ciphertext)));
+            } else {
+                numbers.add(new HomomorphicEncryptedNumber(engine, engine.toMontgomery(ciphertext)));
+            }
+        }
+
+        assertSum(numbers, 820);
+        assertSum(numbers.subList(2, 10), 52); // starts with a javallier number
+    }
+
+    @Test
+    public void ecElGamalSumMatchesPairwiseFold() {
+        ECElGamalKey key = ECElGamal.generateNewKey(ECElGamal.getDefault32BitParams());
+        List<HomomorphicEncryptedNumber> numbers = new ArrayList<HomomorphicEncryptedNumber>();
+        for (int i = 1; i <= 40; i++) {
+            numbers.add(new HomomorphicEncryptedNumber(ECElGamal.encrypt(BigInteger.valueOf(i), key)));
+        }
+
+        HomomorphicEncryptedNumber fold = numbers.get(0);
+        for (int i = 1; i < numbers.size(); i++) {
+            fold = fold.add(numbers.get(i));
+        }
+        assertEquals(820, ECElGamal.decrypt32((ECElGamalCiphertext) HomomorphicEncryptedNumber.sum(numbers).getValue(), key));
+        assertEquals(820, ECElGamal.decrypt32((ECElGamalCiphertext) fold.getValue(), key));
+    }
+
+    private static void assertSum(List<HomomorphicEncryptedNumber> numbers, long expected) {
+        HomomorphicEncryptedNumber fold = numbers.get(0);
+        for (int i = 1; i < numbers.size(); i++) {
+            fold = fold.add(numbers.get(i));
+        }
+        assertEquals(BigInteger.valueOf(expected), decrypt(HomomorphicEncryptedNumber.sum(numbers)));
+        assertEquals(BigInteger.valueOf(expected), decrypt(fold));
+    }
+
+    private static BigInteger decrypt(HomomorphicEncryptedNumber number) {
+        return privateKey.raw_decrypt(((EncryptedNumber) number.getValue()).calculateCiphertext());
+    }
+}
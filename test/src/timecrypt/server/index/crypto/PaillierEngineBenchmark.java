@@ -0,0 +1,58 @@
+package timecrypt.server.index.crypto;
+
+import com.n1analytics.paillier.EncryptedNumber;
+import com.n1analytics.paillier.PaillierContext;
+import com.n1analytics.paillier.PaillierPrivateKey;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares summing ciphertexts with the engine in Montgomery form against javallier additions.
+ * Arguments: key sizes in bits, 1024 and 2048 by default.
+ */
+public class PaillierEngineBenchmark {
+    private static final int CIPHERTEXTS = 1000;
+    private static final int ROUNDS = 30;
+
+    public static void main(String[] args) {
+        String[] keySizes = args.length > 0 ? args : new String[] { "1024", "2048" };
+        for (String keySize : keySizes) {
+            PaillierPrivateKey privateKey = PaillierPrivateKey.create(Integer.parseInt(keySize));
+            PaillierContext context = privateKey.getPublicKey().createSignedContext();
+            PaillierEngine engine = new PaillierEngine(context, 0);
+
+            List<EncryptedNumber> numbers = new ArrayList<EncryptedNumber>(CIPHERTEXTS);
+            List<BigInteger> montgomery = new ArrayList<BigInteger>(CIPHERTEXTS);
+            for (int i = 0; i < CIPHERTEXTS; i++) {
+                BigInteger ciphertext = privateKey.getPublicKey().raw_encrypt(BigInteger.valueOf(i));
+                numbers.add(new EncryptedNumber(context, ciphertext, 0));
+                montgomery.add(engine.toMontgomery(ciphertext));
+            }
+
+            long javallier = Long.MAX_VALUE, montgomeryForm = Long.MAX_VALUE;
+            for (int round = 0; round < ROUNDS; round++) { // the first rounds warm the JIT up, the best round is reported
+                long start = System.nanoTime();
+                EncryptedNumber sum = numbers.get(0);
+                for (int i = 1; i < CIPHERTEXTS; i++) {
+                    sum = sum.add(numbers.get(i));
+                }
+                javallier = Math.min(javallier, System.nanoTime() - start);
+
+                start = System.nanoTime();
+                BigInteger engineSum = montgomery.get(0);
+                for (int i = 1; i < CIPHERTEXTS; i++) {
+                    engineSum = engine.add(engineSum, montgomery.get(i));
+                }
+                montgomeryForm = Math.min(montgomeryForm, System.nanoTime() - start);
+
+                if (!engine.fromMontgomery(engineSum).calculateCiphertext().equals(sum.calculateCiphertext())) {
+                    throw new IllegalStateException("The sums differ.");
+                }
+            }
+
+            System.out.println(String.format("%s bit key, %d additions: javallier %.1f us, engine %.1f us per addition",
+                keySize, CIPHERTEXTS - 1, javallier / 1000.0 / (CIPHERTEXTS - 1), montgomeryForm / 1000.0 / (CIPHERTEXTS - 1)));
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package timecrypt.server.index.crypto;
+
+import static org.junit.Assert.assertEquals;
+
+import com.n1analytics.paillier.EncryptedNumber;
+import com.n1analytics.paillier.PaillierContext;
+import com.n1analytics.paillier.PaillierPrivateKey;
+import com.n1analytics.paillier.PaillierPublicKey;
+import java.math.BigInteger;
+import java.util.Random;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class PaillierEngineTest {
+
+    private static PaillierPrivateKey privateKey;
+    private static PaillierPublicKey publicKey;
+    private static PaillierContext context;
+    private static PaillierEngine engine;
+
+    @BeforeClass
+    public static void createKey() {
+        privateKey = PaillierPrivateKey.create(1024);
+        publicKey = privateKey.getPublicKey();
+        context = publicKey.createSignedContext();
+        engine = new PaillierEngine(context, 0);
+    }
+
+    @Test
+    public void addMatchesJavallier() {
+        Random random = new Random(1);
+        for (int i = 0; i < 20; i++) {
+            BigInteger a = BigInteger.valueOf(random.nextInt(1 << 30));
+            BigInteger b = BigInteger.valueOf(random.nextInt(1 << 30));
+            BigInteger ca = publicKey.raw_encrypt(a);
+            BigInteger cb = publicKey.raw_encrypt(b);
+
+            EncryptedNumber sum = engine.fromMontgomery(engine.add(engine.toMontgomery(ca), engine.toMontgomery(cb)));
+            EncryptedNumber javallierSum = new EncryptedNumber(context, ca, 0).add(new EncryptedNumber(context, cb, 0));
+            assertEquals(a.add(b), privateKey.raw_decrypt(sum.calculateCiphertext()));
+            assertEquals(privateKey.raw_decrypt(javallierSum.calculateCiphertext()), privateKey.raw_decrypt(sum.calculateCiphertext()));
+        }
+    }
+
+    @Test
+    public void longSumsStayReduced() {
+        BigInteger montgomery = engine.toMontgomery(publicKey.raw_encrypt(BigInteger.ZERO));
+        BigInteger modulus = publicKey.getModulusSquared();
+        for (int i = 1; i <= 500; i++) {
+            montgomery = engine.add(montgomery, engine.toMontgomery(publicKey.raw_encrypt(BigInteger.valueOf(i))));
+            assertEquals(-1, montgomery.compareTo(modulus));
+        }
+        assertEquals(BigInteger.valueOf(500 * 501 / 2), privateKey.raw_decrypt(engine.toCiphertext(montgomery)));
+    }
+
+    @Test
+    public void storedBytesDecodeToTheSameNumber() {
+        BigInteger ciphertext = publicKey.raw_encrypt(BigInteger.valueOf(42));
+        HomomorphicEncryptedNumber number = new HomomorphicEncryptedNumber(engine, engine.toMontgomery(ciphertext));
+        assertEquals(ciphertext, new BigInteger(number.toStoredBytes()));
+
+        HomomorphicEncryptedNumber difference = number.add(number).subtract(number);
+        assertEquals(BigInteger.valueOf(42), privateKey.raw_decrypt(((EncryptedNumber) difference.getValue()).calculateCiphertext()));
+    }
+}
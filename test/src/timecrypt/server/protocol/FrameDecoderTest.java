@@ -0,0 +1,94 @@
+package timecrypt.server.protocol;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+public class FrameDecoderTest {
+
+    @Test
+    public void frameSplitOverManyReads() throws IOException {
+        FrameDecoder decoder = new FrameDecoder();
+        ByteBuffer frames = frames(frame(1, 300), frame(2, 5));
+        List<Frame> decoded = new ArrayList<Frame>();
+        while (frames.hasRemaining()) { // one byte per read
+            decoder.append(ByteBuffer.wrap(new byte[] { frames.get() }));
+            Frame frame = decoder.nextFrame();
+            if (frame != null) {
+                assertEquals(decoded.isEmpty() ? FrameDecoder.HEADER_SIZE + 300 : frames.limit(), frames.position()); // complete with its last byte
+                decoded.add(frame);
+            }
+        }
+
+        assertEquals(2, decoded.size());
+        assertFrame(1, 300, decoded.get(0));
+        assertFrame(2, 5, decoded.get(1));
+        assertNull(decoder.nextFrame());
+    }
+
+    @Test
+    public void bufferShrinksAfterLargeFrame() throws IOException {
+        FrameDecoder decoder = new FrameDecoder();
+        int defaultCapacity = decoder.capacity();
+        ByteBuffer next = frame(2, 100);
+        next.limit(50); // only part of the next frame arrived with the large one
+        decoder.append(frames(frame(1, 1024 * 1024), next));
+
+        assertFrame(1, 1024 * 1024, decoder.nextFrame());
+        assertEquals(defaultCapacity, decoder.capacity());
+        assertNull(decoder.nextFrame());
+
+        next.limit(next.capacity()).position(50);
+        decoder.append(next);
+        assertFrame(2, 100, decoder.nextFrame());
+    }
+
+    @Test
+    public void rejectsOversizedFrame() {
+        FrameDecoder decoder = new FrameDecoder();
+        decoder.append(FrameDecoder.header(FrameDecoder.MAX_FRAME_SIZE + 1, 1));
+        try {
+            decoder.nextFrame();
+            fail();
+        } catch (IOException e) {}
+    }
+
+    private static ByteBuffer frame(int id, int length) {
+        ByteBuffer frame = ByteBuffer.allocate(FrameDecoder.HEADER_SIZE + length);
+        frame.put(FrameDecoder.header(length, id));
+        for (int i = 0; i < length; i++) {
+            frame.put((byte) (id + i));
+        }
+        frame.flip();
+        return frame;
+    }
+
+    private static ByteBuffer frames(ByteBuffer... frames) {
+        int length = 0;
+        for (ByteBuffer frame : frames) {
+            length += frame.remaining();
+        }
+        ByteBuffer all = ByteBuffer.allocate(length);
+        for (ByteBuffer frame : frames) {
+            all.put(frame.duplicate());
+        }
+        all.flip();
+        return all;
+    }
+
+    private static void assertFrame(int id, int length, Frame frame) {
+        assertEquals(id, frame.id);
+        byte[] expected = new byte[length];
+        for (int i = 0; i < length; i++) {
+            expected[i] = (byte) (id + i);
+        }
+        assertArrayEquals(expected, frame.payload);
+    }
+}
@@ -2,6 +2,7 @@ package timecrypt.test;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
 
 import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
@@ -10,8 +11,10 @@ import java.io.IOException;
 import java.math.BigInteger;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.BitSet;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.BeforeClass;
@@ -133,6 +136,37 @@ public class UnitTest {
         assertEquals(false, td.containsTag("test8-9", bs, BF_FALSEPOSITIVE_PROBABILITY, BF_EXPECTED_NUM_OF_TAGS));
     }
 
+    @Test
+    public void getStatisticsOfManyNodes() throws InvalidKeyException, NoSuchAlgorithmException, IOException {
+        String streamID = client.createStream(64, "{ 'sum': true, 'min': true, 'max': true, 'count': true, 'tags': true }", paillier.getPublicKey(), null);
+        assertNotNull(streamID);
+
+        List<String> keys = new ArrayList<String>();
+        List<byte[]> data = new ArrayList<byte[]>();
+        List<String> metadata = new ArrayList<String>();
+        for (int i = 1; i < 400; i += 2) {
+            keys.add(chunkKey(i));
+            data.add(chunkKey(i).getBytes());
+            metadata.add(chunkMetadata(i));
+        }
+        assertEquals(true, client.insertBatch(streamID, keys, data, metadata));
+
+        // The range cuts the first and the third node of 64 chunks, so it is covered by 126 nodes that are consolidated in parallel
+        long expectedSum = 0;
+        for (int i = 3; i < 380; i += 2) {
+            expectedSum += i;
+        }
+        JsonObject jObj = new JsonParser().parse(client.getStatistics(streamID, 3, 380)).getAsJsonObject();
+        assertEquals(BigInteger.valueOf(expectedSum), paillier.decrypt(jObj.get("sum").getAsBigInteger()));
+        assertEquals(BigInteger.valueOf(189), paillier.decrypt(jObj.get("count").getAsBigInteger()));
+        assertEquals(3, jObj.get("min").getAsLong());
+        assertEquals(380, jObj.get("max").getAsLong());
+
+        BitSet bs = Utility.unmarshalBitSet(jObj.get("tags").getAsJsonArray());
+        assertEquals(true, td.containsTag("test3-4", bs, BF_FALSEPOSITIVE_PROBABILITY, BF_EXPECTED_NUM_OF_TAGS));
+        assertEquals(true, td.containsTag("test379-380", bs, BF_FALSEPOSITIVE_PROBABILITY, BF_EXPECTED_NUM_OF_TAGS));
+    }
+
     @Test
     public void ECELGamalSum() throws IOException {
         String streamID = client.createStream(2, "{ 'sum': true, 'algorithms': { 'sum': 'ecelgamal' } }", null, null);
@@ -263,6 +297,372 @@ public class UnitTest {
         assertEquals(BigInteger.valueOf(to), paillier.decrypt(last));
     }
 
+    @Test
+    public void binaryProtocol() throws IOException, InvalidKeyException, NoSuchAlgorithmException {
+        TimeCrypt binaryClient = new TimeCrypt(IP, PORT, true);
+        binaryClient.openConnection();
+
+        // Create stream
+        String streamID = binaryClient.createStream(2, "{ 'sum': true, 'min': true, 'max': true, 'count': true, 'tags': true }", paillier.getPublicKey(), null);
+        assertNotNull(streamID);
+
+        insertChunks(binaryClient, streamID, 8);
+
+        // Retrieve statistics and chunks
+        JsonObject jObj = new JsonParser().parse(binaryClient.getStatistics(streamID, 7, 12)).getAsJsonObject();
+        assertEquals(BigInteger.valueOf(27), paillier.decrypt(jObj.get("sum").getAsBigInteger()));
+        assertEquals(BigInteger.valueOf(3), paillier.decrypt(jObj.get("count").getAsBigInteger()));
+        assertEquals(7, jObj.get("min").getAsLong());
+        assertEquals(12, jObj.get("max").getAsLong());
+        BitSet bs = Utility.unmarshalBitSet(jObj.get("tags").getAsJsonArray());
+        assertEquals(true, td.containsTag("test9-10", bs, BF_FALSEPOSITIVE_PROBABILITY, BF_EXPECTED_NUM_OF_TAGS));
+        assertEquals(3, binaryClient.getRange(streamID, 7, 12).size());
+
+        assertEquals(true, binaryClient.delete(streamID));
+        binaryClient.closeConnection();
+    }
+
+    @Test
+    public void pipelinedRequests() throws Exception {
+        String streamID = client.createStream(2, "{ 'sum': true, 'count': true }", paillier.getPublicKey(), null);
+        assertNotNull(streamID);
+
+        // Send all inserts without waiting for their responses
+        List<CompletableFuture<Boolean>> inserts = new ArrayList<CompletableFuture<Boolean>>();
+        for (int i = 1; i < 16; i += 2) {
+            inserts.add(client.insertAsync(streamID, chunkKey(i), chunkKey(i).getBytes(), chunkMetadata(i)));
+        }
+
+        // Statistics sent behind the inserts observe all of them
+        CompletableFuture<String> statistics = client.getStatisticsAsync(streamID, 1, 16);
+        for (CompletableFuture<Boolean> insert : inserts) {
+            assertEquals(true, insert.get());
+        }
+
+        JsonObject jObj = new JsonParser().parse(statistics.get()).getAsJsonObject();
+        assertEquals(BigInteger.valueOf(64), paillier.decrypt(jObj.get("sum").getAsBigInteger()));
+        assertEquals(BigInteger.valueOf(8), paillier.decrypt(jObj.get("count").getAsBigInteger()));
+    }
+
+    @Test
+    public void insertBatch() throws IOException, InvalidKeyException, NoSuchAlgorithmException {
+        String streamID = client.createStream(2, "{ 'sum': true, 'min': true, 'max': true, 'count': true, 'tags': true }", paillier.getPublicKey(), null);
+        assertNotNull(streamID);
+
+        // Insert all chunks with a single request
+        List<String> keys = new ArrayList<String>();
+        List<byte[]> data = new ArrayList<byte[]>();
+        List<String> metadata = new ArrayList<String>();
+        for (int i = 1; i < 16; i += 2) {
+            keys.add(chunkKey(i));
+            data.add(chunkKey(i).getBytes());
+            metadata.add(chunkMetadata(i));
+        }
+        assertEquals(true, client.insertBatch(streamID, keys, data, metadata));
+
+        // Statistics match the ones of chunks inserted one by one
+        JsonObject jObj = new JsonParser().parse(client.getStatistics(streamID, 7, 12)).getAsJsonObject();
+        assertEquals(BigInteger.valueOf(27), paillier.decrypt(jObj.get("sum").getAsBigInteger()));
+        assertEquals(BigInteger.valueOf(3), paillier.decrypt(jObj.get("count").getAsBigInteger()));
+        assertEquals(7, jObj.get("min").getAsLong());
+        assertEquals(12, jObj.get("max").getAsLong());
+
+        BitSet bs = Utility.unmarshalBitSet(jObj.get("tags").getAsJsonArray());
+        assertEquals(true, td.containsTag("test7-8", bs, BF_FALSEPOSITIVE_PROBABILITY, BF_EXPECTED_NUM_OF_TAGS));
+        assertEquals(false, td.containsTag("test8-9", bs, BF_FALSEPOSITIVE_PROBABILITY, BF_EXPECTED_NUM_OF_TAGS));
+
+        // A batch older than the stored chunks is rejected as a whole
+        try {
+            client.insertBatch(streamID, keys.subList(0, 1), data.subList(0, 1), metadata.subList(0, 1));
+            fail();
+        } catch (IOException e) {}
+    }
+
+    @Test
+    public void getStatisticsSeries() throws IOException, InvalidKeyException, NoSuchAlgorithmException {
+        String streamID = client.createStream(2, "{ 'sum': true, 'count': true }", paillier.getPublicKey(), null);
+        assertNotNull(streamID);
+
+        insertChunks(streamID, 8);
+
+        // Windows 1-4, 5-8, 9-12 and 13-16 hold two chunks each, window 17-20 is empty
+        List<String> series = client.getStatisticsSeries(streamID, 1, 20, 4);
+        assertEquals(5, series.size());
+        for (int window = 0; window < 4; window++) {
+            JsonObject jObj = new JsonParser().parse(series.get(window)).getAsJsonObject();
+            assertEquals(BigInteger.valueOf(8 * window + 4), paillier.decrypt(jObj.get("sum").getAsBigInteger()));
+            assertEquals(BigInteger.valueOf(2), paillier.decrypt(jObj.get("count").getAsBigInteger()));
+        }
+        assertEquals(null, series.get(4));
+    }
+
+    @Test
+    public void getStatisticsSeriesWithLargeStep() throws IOException, InvalidKeyException, NoSuchAlgorithmException {
+        String streamID = client.createStream(2, "{ 'sum': true, 'count': true }", paillier.getPublicKey(), null);
+        assertNotNull(streamID);
+
+        insertChunks(streamID, 8);
+
+        // A step longer than the range gives a single window ending with the range, chunk 1-2 crosses its start
+        List<String> series = client.getStatisticsSeries(streamID, 2, 20, Long.MAX_VALUE);
+        assertEquals(1, series.size());
+        JsonObject jObj = new JsonParser().parse(series.get(0)).getAsJsonObject();
+        assertEquals(BigInteger.valueOf(63), paillier.decrypt(jObj.get("sum").getAsBigInteger()));
+        assertEquals(BigInteger.valueOf(7), paillier.decrypt(jObj.get("count").getAsBigInteger()));
+
+        series = client.getStatisticsSeries(streamID, -100, 20, Long.MAX_VALUE);
+        assertEquals(1, series.size());
+        jObj = new JsonParser().parse(series.get(0)).getAsJsonObject();
+        assertEquals(BigInteger.valueOf(64), paillier.decrypt(jObj.get("sum").getAsBigInteger()));
+
+        // The length of the range does not fit into a long
+        try {
+            client.getStatisticsSeries(streamID, Long.MIN_VALUE, 20, Long.MAX_VALUE);
+            fail();
+        } catch (IOException e) {}
+    }
+
+    @Test
+    public void prefixAggregates() throws IOException, InvalidKeyException, NoSuchAlgorithmException {
+        String streamID = client.createStream(2, "{ 'sum': true, 'count': true, 'index': { 'prefix': true } }", paillier.getPublicKey(), null);
+        assertNotNull(streamID);
+
+        insertChunks(streamID, 8);
+
+        // Chunks 5-6, 7-8, 9-10 and 11-12 lie within the range
+        JsonObject jObj = new JsonParser().parse(client.getStatistics(streamID, 4, 12)).getAsJsonObject();
+        assertEquals(BigInteger.valueOf(32), paillier.decrypt(jObj.get("sum").getAsBigInteger()));
+        assertEquals(BigInteger.valueOf(4), paillier.decrypt(jObj.get("count").getAsBigInteger()));
+        assertEquals(5, jObj.get("from").getAsLong());
+        assertEquals(12, jObj.get("to").getAsLong());
+    }
+
+    @Test
+    public void arrayLayout() throws IOException, InvalidKeyException, NoSuchAlgorithmException {
+        String streamID = client.createStream(2, "{ 'sum': true, 'count': true, 'min': true, 'max': true, 'index': { 'layout': 'array' } }", paillier.getPublicKey(), null);
+        assertNotNull(streamID);
+
+        insertChunks(streamID, 8);
+
+        // Chunks 5-6, 7-8, 9-10 and 11-12 lie within the range
+        JsonObject jObj = new JsonParser().parse(client.getStatistics(streamID, 4, 12)).getAsJsonObject();
+        assertEquals(BigInteger.valueOf(32), paillier.decrypt(jObj.get("sum").getAsBigInteger()));
+        assertEquals(BigInteger.valueOf(4), paillier.decrypt(jObj.get("count").getAsBigInteger()));
+        assertEquals(5, jObj.get("min").getAsLong());
+        assertEquals(12, jObj.get("max").getAsLong());
+
+        List<byte[]> chunks = client.getRange(streamID, 4, 12);
+        assertEquals(5, chunks.size());
+        assertEquals("3-4", new String(chunks.get(0)));
+    }
+
+    @Test
+    public void offHeapAggregates() throws IOException, InvalidKeyException, NoSuchAlgorithmException {
+        String streamID = client.createStream(2, "{ 'sum': true, 'count': true, 'min': true, 'max': true, 'index': { 'layout': 'array', 'offheap': true } }", paillier.getPublicKey(), null);
+        assertNotNull(streamID);
+
+        insertChunks(streamID, 8);
+
+        // Every node but the last one of each level is decoded from the arena
+        JsonObject jObj = new JsonParser().parse(client.getStatistics(streamID, 0, 20)).getAsJsonObject();
+        assertEquals(BigInteger.valueOf(64), paillier.decrypt(jObj.get("sum").getAsBigInteger()));
+        assertEquals(BigInteger.valueOf(8), paillier.decrypt(jObj.get("count").getAsBigInteger()));
+        assertEquals(1, jObj.get("min").getAsLong());
+        assertEquals(16, jObj.get("max").getAsLong());
+
+        jObj = new JsonParser().parse(client.getStatistics(streamID, 4, 12)).getAsJsonObject();
+        assertEquals(BigInteger.valueOf(32), paillier.decrypt(jObj.get("sum").getAsBigInteger()));
+        assertEquals(BigInteger.valueOf(4), paillier.decrypt(jObj.get("count").getAsBigInteger()));
+    }
+
+    @Test
+    public void snapshotLayout() throws IOException, InvalidKeyException, NoSuchAlgorithmException {
+        String streamID = client.createStream(2, "{ 'sum': true, 'count': true, 'index': { 'layout': 'snapshot' } }", paillier.getPublicKey(), null);
+        assertNotNull(streamID);
+
+        insertChunks(streamID, 8);
+
+        // Chunks 5-6, 7-8, 9-10 and 11-12 lie within the range
+        JsonObject jObj = new JsonParser().parse(client.getStatistics(streamID, 4, 12)).getAsJsonObject();
+        assertEquals(BigInteger.valueOf(32), paillier.decrypt(jObj.get("sum").getAsBigInteger()));
+        assertEquals(BigInteger.valueOf(4), paillier.decrypt(jObj.get("count").getAsBigInteger()));
+        assertEquals(5, client.getRange(streamID, 4, 12).size());
+    }
+
+    @Test
+    public void snapshotLayoutWithPrefixAggregates() throws IOException {
+        try {
+            client.createStream(2, "{ 'sum': true, 'count': true, 'index': { 'layout': 'snapshot', 'prefix': true } }", paillier.getPublicKey(), null);
+            fail();
+        } catch (IOException e) {}
+    }
+
+    @Test
+    public void deferredRollup() throws IOException, InvalidKeyException, NoSuchAlgorithmException {
+        String streamID = client.createStream(2, "{ 'sum': true, 'count': true, 'min': true, 'max': true, 'index': { 'deferred': true } }", paillier.getPublicKey(), null);
+        assertNotNull(streamID);
+
+        // Seven chunks leave the nodes on the right-most path of the tree unsealed
+        insertChunks(streamID, 7);
+
+        JsonObject jObj = new JsonParser().parse(client.getStatistics(streamID, 0, 20)).getAsJsonObject();
+        assertEquals(BigInteger.valueOf(49), paillier.decrypt(jObj.get("sum").getAsBigInteger()));
+        assertEquals(BigInteger.valueOf(7), paillier.decrypt(jObj.get("count").getAsBigInteger()));
+        assertEquals(1, jObj.get("min").getAsLong());
+        assertEquals(14, jObj.get("max").getAsLong());
+    }
+
+    @Test
+    public void lateChunks() throws IOException, InvalidKeyException, NoSuchAlgorithmException {
+        String streamID = client.createStream(2, "{ 'sum': true, 'count': true, 'index': { 'lateness': 4 } }", paillier.getPublicKey(), null);
+        assertNotNull(streamID);
+
+        // Chunk 3-4 arrives after 5-6 but within the lateness
+        long[] starts = { 1, 5, 3, 7, 9 };
+        for (long i : starts) {
+            assertEquals(true, insertChunk(client, streamID, i));
+        }
+
+        // A chunk that is already buffered or older than the watermark is refused
+        try {
+            insertChunk(client, streamID, 7);
+            fail();
+        } catch (IOException e) {}
+        try {
+            insertChunk(client, streamID, 4);
+            fail();
+        } catch (IOException e) {}
+
+        // Only the chunks up to the watermark at 5 are indexed
+        JsonObject jObj = new JsonParser().parse(client.getStatistics(streamID, 0, 20)).getAsJsonObject();
+        assertEquals(BigInteger.valueOf(9), paillier.decrypt(jObj.get("sum").getAsBigInteger()));
+        assertEquals(BigInteger.valueOf(3), paillier.decrypt(jObj.get("count").getAsBigInteger()));
+    }
+
+    @Test
+    public void retention() throws IOException, InvalidKeyException, NoSuchAlgorithmException {
+        String streamID = client.createStream(2, "{ 'sum': true, 'count': true, 'index': { 'retention': 4 } }", paillier.getPublicKey(), null);
+        assertNotNull(streamID);
+
+        insertChunks(streamID, 7);
+
+        // Chunks 1-2 to 7-8 ended before 9, only the aggregates of their parents are left
+        assertEquals(3, client.getRange(streamID, 0, 20).size());
+        JsonObject jObj = new JsonParser().parse(client.getStatistics(streamID, 0, 20)).getAsJsonObject();
+        assertEquals(BigInteger.valueOf(49), paillier.decrypt(jObj.get("sum").getAsBigInteger()));
+        assertEquals(BigInteger.valueOf(7), paillier.decrypt(jObj.get("count").getAsBigInteger()));
+
+        // The range covers the parent of 1-2 and 3-4 but only one child of the next one
+        jObj = new JsonParser().parse(client.getStatistics(streamID, 0, 6)).getAsJsonObject();
+        assertEquals(BigInteger.valueOf(4), paillier.decrypt(jObj.get("sum").getAsBigInteger()));
+        assertEquals(BigInteger.valueOf(2), paillier.decrypt(jObj.get("count").getAsBigInteger()));
+    }
+
+    @Test
+    public void repeatedStatistics() throws IOException, InvalidKeyException, NoSuchAlgorithmException {
+        String streamID = client.createStream(2, "{ 'sum': true, 'count': true }", paillier.getPublicKey(), null);
+        assertNotNull(streamID);
+
+        for (int i = 1; i < 9; i += 2) {
+            assertEquals(true, insertChunk(client, streamID, i));
+
+            // The cached statistics of a range reaching the new chunk are replaced, older ranges keep theirs
+            JsonObject jObj = new JsonParser().parse(client.getStatistics(streamID, 0, 20)).getAsJsonObject();
+            assertEquals(BigInteger.valueOf((i+1) * (i+1) / 4), paillier.decrypt(jObj.get("sum").getAsBigInteger()));
+            jObj = new JsonParser().parse(client.getStatistics(streamID, 0, 2)).getAsJsonObject();
+            assertEquals(BigInteger.valueOf(1), paillier.decrypt(jObj.get("sum").getAsBigInteger()));
+        }
+    }
+
+    @Test
+    public void layoutsAgreeOnEveryRange() throws IOException, InvalidKeyException, NoSuchAlgorithmException {
+        String[] indexes = { "{}", "{ 'deferred': true }", "{ 'prefix': true }", "{ 'layout': 'array' }", "{ 'layout': 'array', 'offheap': true }", "{ 'layout': 'snapshot' }" };
+        int chunks = 20;
+        for (String index : indexes) {
+            String contract = String.format("{ 'sum': true, 'count': true, 'min': true, 'max': true, 'tags': true, 'index': %s }", index);
+            String streamID = client.createStream(3, contract, paillier.getPublicKey(), null);
+            assertNotNull(streamID);
+
+            // Twenty chunks on a tree of arity three leave partial nodes on every level
+            insertChunks(streamID, chunks);
+
+            for (long from = 0; from <= 2 * chunks; from += 3) {
+                for (long to = from + 2; to <= 2 * chunks + 1; to += 5) {
+                    assertRange(streamID, chunks, from, to);
+                }
+            }
+        }
+    }
+
+    /**
+     * Compares the statistics and the chunks of a range with the ones expected from {@link #insertChunks(String, int)}
+     */
+    private void assertRange(String streamID, int chunks, long from, long to) throws IOException, InvalidKeyException, NoSuchAlgorithmException {
+        long sum = 0, count = 0, min = Long.MAX_VALUE, max = Long.MIN_VALUE;
+        List<String> overlapping = new ArrayList<String>();
+        for (long i = 1; i < 2 * chunks; i += 2) {
+            if (i >= from && i + 1 <= to) {
+                sum += i;
+                count++;
+                min = Math.min(min, i);
+                max = Math.max(max, i + 1);
+            }
+            if (i + 1 >= from && i <= to) {
+                overlapping.add(chunkKey(i));
+            }
+        }
+
+        List<String> keys = new ArrayList<String>();
+        for (byte[] chunk : client.getRange(streamID, from, to)) {
+            keys.add(new String(chunk));
+        }
+        assertEquals(overlapping, keys);
+        if (count == 0) {
+            return;
+        }
+
+        JsonObject jObj = new JsonParser().parse(client.getStatistics(streamID, from, to)).getAsJsonObject();
+        assertEquals(BigInteger.valueOf(sum), paillier.decrypt(jObj.get("sum").getAsBigInteger()));
+        assertEquals(BigInteger.valueOf(count), paillier.decrypt(jObj.get("count").getAsBigInteger()));
+        assertEquals(min, jObj.get("min").getAsLong());
+        assertEquals(max, jObj.get("max").getAsLong());
+        BitSet bs = Utility.unmarshalBitSet(jObj.get("tags").getAsJsonArray());
+        assertEquals(true, td.containsTag("test" + chunkKey(min), bs, BF_FALSEPOSITIVE_PROBABILITY, BF_EXPECTED_NUM_OF_TAGS));
+        assertEquals(true, td.containsTag("test" + chunkKey(max - 1), bs, BF_FALSEPOSITIVE_PROBABILITY, BF_EXPECTED_NUM_OF_TAGS));
+    }
+
+    private void insertChunks(String streamID, int n) throws IOException, InvalidKeyException, NoSuchAlgorithmException {
+        insertChunks(client, streamID, n);
+    }
+
+    /**
+     * Inserts the chunks 1-2, 3-4, ... one by one, see {@link #chunkMetadata(long)}
+     */
+    private void insertChunks(TimeCrypt client, String streamID, int n) throws IOException, InvalidKeyException, NoSuchAlgorithmException {
+        for (int i = 1; i < 2 * n; i += 2) {
+            assertEquals(true, insertChunk(client, streamID, i));
+        }
+    }
+
+    private boolean insertChunk(TimeCrypt client, String streamID, long i) throws IOException, InvalidKeyException, NoSuchAlgorithmException {
+        return client.insert(streamID, chunkKey(i), chunkKey(i).getBytes(), chunkMetadata(i));
+    }
+
+    private static String chunkKey(long i) {
+        return String.format("%s-%s", i, i+1);
+    }
+
+    /**
+     * Metadata of the chunk i-(i+1): the sum i, the count 1, the plain bounds as min and max and the tag "test" followed by its key.
+     * The stream drops the fields its contract does not ask for.
+     */
+    private String chunkMetadata(long i) throws IOException, InvalidKeyException, NoSuchAlgorithmException {
+        BigInteger sum = paillier.encrypt(BigInteger.valueOf(i));
+        BigInteger count = paillier.encrypt(BigInteger.valueOf(1));
+        String tags = td.getFilter("test" + chunkKey(i), BF_FALSEPOSITIVE_PROBABILITY, BF_EXPECTED_NUM_OF_TAGS);
+        return getMetadataJson(i, i+1, sum, count, BigInteger.valueOf(i), BigInteger.valueOf(i+1), null, null, tags);
+    }
+
     private String getMetadataJson(long from, long to, BigInteger sum, BigInteger count, BigInteger min, BigInteger max, BigInteger first, BigInteger last, String tags) {
         return String.format("{ 'from': %s, 'to': %s, 'sum': %s, 'count': %s, 'min': %s, 'max': %s, 'first': %s, 'last': %s, 'tags': %s }", from, to, sum, count, min, max, first, last, tags);
     }